@@ -0,0 +1,344 @@
+package Benchmark;
+
+import Operator.LeaderLease;
+import Operator.RegistryOperationsImpl;
+import Server.BackendService;
+import Server.FileData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Failure injection for a cluster on this machine. Every scenario gets a cluster of its own: an operator in this
+ * process and -Ddfs.scenario.servers (3) servers, each a BackendServiceServer process with its own directory under
+ * scenarios/ in the working directory. The scenarios check the quorum and lease behaviour:
+ * killLeader         kills the leader. A replica has to be elected within a lease and two heartbeat intervals, with the
+ *                    write the old leader acknowledged, and has to accept writes.
+ * partitionReplica   stops a replica with SIGSTOP, so it neither answers nor sends heartbeats. A write has to come back
+ *                    SUCCESS or UNDER_REPLICATED as -Ddfs.replicationMode says, writes have to succeed once the
+ *                    operator dropped the replica, and once it is resumed it has to join again with what it missed.
+ * partitionLeader    stops the leader. Once a new leader is elected the old one is resumed, and it has to refuse writes
+ *                    from clients, and the new leader has to refuse copies sent in the old term.
+ * -Ddfs.scenario.filter picks the scenarios by name. Every dfs. property is passed on to the servers, so -Ddfs.leaseMs,
+ * -Ddfs.heartbeatMs and -Ddfs.replicationMode apply to the whole cluster, and -Ddfs.replicationTimeoutMs is 3000 unless
+ * it is set. Stopping a process needs the kill command, so the partitions only run on Unix.
+ * Every check prints PASS or FAIL, and the process exits with 1 if any check failed.
+ */
+public class FailureScenarios {
+    private static final int REGISTRY_PORT = Integer.getInteger("dfs.scenario.registryPort", 1198);
+    private static final int SERVERS = Math.max(2, Integer.getInteger("dfs.scenario.servers", 3));
+    private static final Pattern FILTER = Pattern.compile(System.getProperty("dfs.scenario.filter", ".*"));
+    private static final String REPLICATION_MODE = System.getProperty("dfs.replicationMode", "ALL").toUpperCase();
+    // a new leader is elected once the lease ran out and the monitor noticed, and it learns so from its next heartbeat
+    private static final long ELECTION_MS = LeaderLease.LEASE_MS + 2 * LeaderLease.HEARTBEAT_MS;
+    private static final long SLACK_MS = 1_000;
+    private static final String FILE = "scenario.txt";
+
+    private static int failures;
+
+    /**
+     * @param args main method argument, not used
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+        // a call to a stopped server would otherwise wait for as long as it stays stopped
+        System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(ELECTION_MS + 10_000));
+        try {
+            int port = REGISTRY_PORT;
+            run("killLeader", port++, FailureScenarios::killLeader);
+            run("partitionReplica", port++, FailureScenarios::partitionReplica);
+            run("partitionLeader", port, FailureScenarios::partitionLeader);
+            System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+            System.exit(failures == 0 ? 0 : 1);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs one scenario on a new cluster if it matches the filter, and stops the cluster afterwards.
+     */
+    private static void run(String name, int port, Scenario scenario) throws Exception {
+        if (!FILTER.matcher(name).matches()) {
+            return;
+        }
+        System.out.println(name + " with " + SERVERS + " servers, replication mode " + REPLICATION_MODE);
+        try (Cluster cluster = new Cluster(name, port)) {
+            cluster.start();
+            scenario.run(cluster);
+        }
+    }
+
+    private static void killLeader(Cluster cluster) throws Exception {
+        Map.Entry<String, BackendService> leader = cluster.operator.getCentralAuthority();
+        Instant version = Instant.now();
+        check("the leader stores a write", leader.getValue().write(FILE, contents(version), version).status() == FileData.StatusCodeEnum.SUCCESS);
+        cluster.process(leader.getValue().getNodeId()).destroyForcibly();
+        long killed = System.nanoTime();
+        boolean elected = await(ELECTION_MS * 3, () -> !cluster.operator.getCentralAuthority().getKey().equals(leader.getKey())
+                && cluster.operator.getCentralAuthority().getValue() != null);
+        long electionMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - killed);
+        check("a new leader is elected after " + electionMs + " ms, within " + (ELECTION_MS + SLACK_MS) + " ms",
+                elected && electionMs <= ELECTION_MS + SLACK_MS);
+        if (!elected) {
+            return;
+        }
+        BackendService newLeader = cluster.operator.getCentralAuthority().getValue();
+        if (REPLICATION_MODE.equals("LEADER")) {
+            System.out.println("  skipped: in LEADER mode a write is acknowledged before any replica has it");
+        } else {
+            check("the new leader has the acknowledged write", version.equals(newLeader.read(FILE).version()));
+        }
+        Instant next = Instant.now();
+        check("the new leader accepts writes", await(LeaderLease.HEARTBEAT_MS * 2 + SLACK_MS,
+                () -> newLeader.write(FILE, contents(next), next).status() == FileData.StatusCodeEnum.SUCCESS));
+    }
+
+    private static void partitionReplica(Cluster cluster) throws Exception {
+        BackendService leader = cluster.operator.getCentralAuthority().getValue();
+        Map.Entry<String, BackendService> replica = cluster.operator.getAllServers().get(0);
+        String replicaId = replica.getValue().getNodeId();
+        cluster.signal(replicaId, "STOP");
+        Instant version = Instant.now();
+        FileData.StatusCodeEnum expected = enoughReplicas(SERVERS - 2, SERVERS - 1)
+                ? FileData.StatusCodeEnum.SUCCESS : FileData.StatusCodeEnum.UNDER_REPLICATED;
+        FileData.StatusCodeEnum status = leader.write(FILE, contents(version), version).status();
+        check("a write while a replica is cut off is " + expected + ", got " + status, status == expected);
+        check("the operator drops the replica once its heartbeats stop", await(ELECTION_MS + SLACK_MS,
+                () -> cluster.operator.getAllServers().stream().noneMatch(server -> server.getKey().equals(replica.getKey()))));
+        Instant[] latest = {version};
+        check("writes succeed without the replica", await(ELECTION_MS + SLACK_MS, () -> {
+            latest[0] = Instant.now();
+            return leader.write(FILE, contents(latest[0]), latest[0]).status() == FileData.StatusCodeEnum.SUCCESS;
+        }));
+        cluster.signal(replicaId, "CONT");
+        check("the replica joins again with the writes it missed", await(ELECTION_MS * 2 + SLACK_MS, () -> {
+            for (Map.Entry<String, BackendService> server : cluster.operator.getAllServers()) {
+                if (server.getValue().getNodeId().equals(replicaId)) {
+                    return latest[0].equals(server.getValue().read(FILE).version());
+                }
+            }
+            return false;
+        }));
+    }
+
+    private static void partitionLeader(Cluster cluster) throws Exception {
+        Map.Entry<String, BackendService> leader = cluster.operator.getCentralAuthority();
+        String leaderId = leader.getValue().getNodeId();
+        long oldTerm = leader.getValue().getStats().get("lease.term");
+        Instant version = Instant.now();
+        check("the leader stores a write", leader.getValue().write(FILE, contents(version), version).status() == FileData.StatusCodeEnum.SUCCESS);
+        cluster.signal(leaderId, "STOP");
+        boolean elected = await(ELECTION_MS * 3, () -> !cluster.operator.getCentralAuthority().getKey().equals(leader.getKey())
+                && cluster.operator.getCentralAuthority().getValue() != null);
+        check("a new leader is elected while the old one is cut off", elected);
+        if (!elected) {
+            cluster.signal(leaderId, "CONT");
+            return;
+        }
+        BackendService newLeader = cluster.operator.getCentralAuthority().getValue();
+        Instant next = Instant.now();
+        check("the new leader accepts writes", await(LeaderLease.HEARTBEAT_MS * 2 + SLACK_MS,
+                () -> newLeader.write(FILE, contents(next), next).status() == FileData.StatusCodeEnum.SUCCESS));
+        cluster.signal(leaderId, "CONT");
+        // the old leader's lease ran out while it was stopped, before it heard of the new term
+        Instant stale = Instant.now();
+        FileData.StatusCodeEnum status = leader.getValue().write(FILE, contents(stale), stale).status();
+        check("the old leader refuses writes once it is resumed, got " + status, status == FileData.StatusCodeEnum.NOT_LEADER);
+        status = newLeader.replicaWrite(FILE, contents(stale), stale, oldTerm).status();
+        check("a copy sent in the old term " + oldTerm + " is refused, got " + status, status == FileData.StatusCodeEnum.NOT_LEADER);
+        check("the old leader joins again as a replica with the new leader's write", await(ELECTION_MS * 2 + SLACK_MS, () -> {
+            for (Map.Entry<String, BackendService> server : cluster.operator.getAllServers()) {
+                if (server.getValue().getNodeId().equals(leaderId)) {
+                    return next.equals(server.getValue().read(FILE).version());
+                }
+            }
+            return false;
+        }));
+    }
+
+    /**
+     * Whether the replicas that are up are enough for the replication mode, like the leader counts them.
+     */
+    private static boolean enoughReplicas(int up, int replicas) {
+        return switch (REPLICATION_MODE) {
+            case "LEADER" -> true;
+            case "MAJORITY" -> up >= (replicas + 1) / 2;
+            default -> up >= replicas;
+        };
+    }
+
+    private static byte[] contents(Instant version) {
+        return ("written at " + version).getBytes();
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "  PASS " : "  FAIL ") + what);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * Checks a condition every 50 ms until it holds or the time runs out. A call that fails counts as the condition
+     * not holding yet.
+     * @return true if the condition held in time.
+     */
+    private static boolean await(long timeoutMs, Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            try {
+                if (condition.holds()) {
+                    return true;
+                }
+            } catch (RemoteException | RuntimeException e) {
+                // the cluster is still changing
+            }
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * An operator in this process with its own registry, and server processes that join it one after the other.
+     */
+    private static final class Cluster implements AutoCloseable {
+        private final Path directory;
+        private final int port;
+        private final RegistryOperationsImpl operator;
+        private final Map<String, Process> servers = new HashMap<>();
+        private final List<Process> processes = new ArrayList<>();
+
+        Cluster(String name, int port) throws Exception {
+            this.directory = Paths.get("scenarios", name);
+            this.port = port;
+            deleteDirectory(directory);
+            Registry registry = LocateRegistry.createRegistry(port);
+            // the constructor is protected, an empty subclass reaches it
+            operator = new RegistryOperationsImpl(registry) {
+            };
+            registry.bind("operator", operator);
+        }
+
+        /**
+         * Starts the servers. The first one is elected leader, the others join as replicas.
+         */
+        void start() throws Exception {
+            for (int i = 0; i < SERVERS; i++) {
+                Process process = startServer(i);
+                processes.add(process);
+                int replicas = i;
+                boolean joined = await(ELECTION_MS * 5, () -> cluster(replicas));
+                if (!joined) {
+                    throw new IllegalStateException("Server " + i + " didn't join, see its log in " + directory);
+                }
+                for (String nodeId : nodeIds()) {
+                    servers.putIfAbsent(nodeId, process);
+                }
+            }
+        }
+
+        private boolean cluster(int replicas) throws RemoteException {
+            return operator.getCentralAuthority().getValue() != null && operator.getAllServers().size() == replicas;
+        }
+
+        private List<String> nodeIds() throws RemoteException {
+            List<String> nodeIds = new ArrayList<>();
+            nodeIds.add(operator.getCentralAuthority().getValue().getNodeId());
+            for (Map.Entry<String, BackendService> server : operator.getAllServers()) {
+                nodeIds.add(server.getValue().getNodeId());
+            }
+            return nodeIds;
+        }
+
+        Process process(String nodeId) {
+            return servers.get(nodeId);
+        }
+
+        /**
+         * Sends a signal to the process of a server, STOP to cut it off and CONT to resume it.
+         */
+        void signal(String nodeId, String signal) throws IOException, InterruptedException {
+            new ProcessBuilder("kill", "-" + signal, String.valueOf(servers.get(nodeId).pid())).inheritIO().start().waitFor();
+        }
+
+        private Process startServer(int index) throws IOException {
+            Path serverDirectory = directory.resolve("server-" + index);
+            Files.createDirectories(serverDirectory);
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            System.getProperties().stringPropertyNames().stream()
+                    .filter(name -> name.startsWith("dfs.") && !name.startsWith("dfs.scenario."))
+                    .forEach(name -> command.add("-D" + name + "=" + System.getProperty(name)));
+            if (System.getProperty("dfs.replicationTimeoutMs") == null) {
+                command.add("-Ddfs.replicationTimeoutMs=3000");
+            }
+            command.add("-Ddfs.hostname=127.0.0.1");
+            command.add("-Ddfs.registryHost=127.0.0.1");
+            command.add("-Ddfs.registryPort=" + port);
+            command.add("-cp");
+            // the servers run in directories of their own
+            List<String> classPath = new ArrayList<>();
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                classPath.add(Paths.get(entry).toAbsolutePath().toString());
+            }
+            command.add(String.join(File.pathSeparator, classPath));
+            command.add("Server.BackendServiceServer");
+            File log = serverDirectory.resolve("server.log").toFile();
+            return new ProcessBuilder(command).directory(serverDirectory.toFile()).redirectErrorStream(true)
+                    .redirectOutput(log).start();
+        }
+
+        @Override
+        public void close() {
+            for (Process process : processes) {
+                // a stopped process is killed all the same
+                process.destroyForcibly().onExit().join();
+            }
+        }
+
+        private static void deleteDirectory(Path directory) throws IOException {
+            if (Files.notExists(directory)) {
+                return;
+            }
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * One scenario, run on a cluster that has just started.
+     */
+    @FunctionalInterface
+    private interface Scenario {
+        void run(Cluster cluster) throws Exception;
+    }
+
+    /**
+     * A condition on the state of the cluster.
+     */
+    @FunctionalInterface
+    private interface Condition {
+        boolean holds() throws RemoteException;
+    }
+}
@@ -0,0 +1,407 @@
+package Benchmark;
+
+import Operator.RegistryOperations;
+import Proxy.AsyncProxy;
+import Proxy.Proxy;
+import Server.AsyncCalls;
+import Server.FileData;
+import Server.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless client that puts load on a running cluster through its proxies and reports the throughput and the
+ * p50/p99/p99.9 latency of the reads and writes. Every thread sends one request after the other to one of the proxies,
+ * or with more than one request in flight keeps that many going at once through AsyncProxy.
+ * The load is set with system properties:
+ * -Ddfs.load.threads         threads per process (16)
+ * -Ddfs.load.inFlight        requests each thread keeps in flight (1)
+ * -Ddfs.load.processes       processes, the extra ones are started by the first and report to it (1)
+ * -Ddfs.load.warmupMs        time before the requests are measured (5000)
+ * -Ddfs.load.durationMs      time the requests are measured for (30000)
+ * -Ddfs.load.readRatio       share of the requests that are reads (0.9)
+ * -Ddfs.load.keys            number of files (1000)
+ * -Ddfs.load.zipf            skew of the files that are picked, 0 picks them uniformly (0.99)
+ * -Ddfs.load.sizes           file sizes and their weights as size:weight pairs (4096:70,65536:25,1048576:5)
+ * -Ddfs.load.compare         runs the load twice at the same concurrency, first with threads * inFlight threads that
+ *                            each block on one request, then with AsyncProxy as set above, and reports the peak
+ *                            threads of each run (false)
+ * Every file gets a fixed size from the distribution and is written once before the load starts.
+ * AsyncProxy runs each call on a thread of AsyncCalls, since RMI calls block. On Java 17 those are platform threads,
+ * so the async run needs about as many threads as the blocking one. Only virtual threads, on Java 21, make it cheaper.
+ */
+public class LoadGenerator {
+    private static final int THREADS = Math.max(1, Integer.getInteger("dfs.load.threads", 16));
+    private static final int IN_FLIGHT = Math.max(1, Integer.getInteger("dfs.load.inFlight", 1));
+    private static final int PROCESSES = Math.max(1, Integer.getInteger("dfs.load.processes", 1));
+    private static final long WARMUP_MS = Long.getLong("dfs.load.warmupMs", 5_000L);
+    private static final long DURATION_MS = Math.max(1, Long.getLong("dfs.load.durationMs", 30_000L));
+    private static final double READ_RATIO = Double.parseDouble(System.getProperty("dfs.load.readRatio", "0.9"));
+    private static final int KEYS = Math.max(1, Integer.getInteger("dfs.load.keys", 1000));
+    private static final double ZIPF = Double.parseDouble(System.getProperty("dfs.load.zipf", "0.99"));
+    private static final String SIZES = System.getProperty("dfs.load.sizes", "4096:70,65536:25,1048576:5");
+    // set on the processes started by the first one, they skip writing the files and print their results for it
+    private static final boolean CHILD = Boolean.getBoolean("dfs.load.child");
+    private static final boolean COMPARE = Boolean.getBoolean("dfs.load.compare");
+    private static final String RESULT = "RESULT ";
+
+    private final List<Proxy> proxies;
+    private final int[] sizes = new int[KEYS];
+    private final Map<Integer, byte[]> payloads = new TreeMap<>();
+    private final double[] cumulative = new double[KEYS];
+    private final LatencyHistogram reads = new LatencyHistogram();
+    private final LatencyHistogram writes = new LatencyHistogram();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private LoadGenerator(List<Proxy> proxies) {
+        this.proxies = proxies;
+        int[][] weights = parseSizes(SIZES);
+        int totalWeight = Arrays.stream(weights).mapToInt(size -> size[1]).sum();
+        for (int key = 0; key < KEYS; key++) {
+            // the same file gets the same size in every process
+            int pick = new SplittableRandom(key).nextInt(totalWeight);
+            for (int[] size : weights) {
+                pick -= size[1];
+                if (pick < 0) {
+                    sizes[key] = size[0];
+                    break;
+                }
+            }
+        }
+        SplittableRandom random = new SplittableRandom(0x10AD);
+        for (int[] size : weights) {
+            byte[] payload = new byte[size[0]];
+            random.nextBytes(payload);
+            payloads.put(size[0], payload);
+        }
+        double total = 0;
+        for (int key = 0; key < KEYS; key++) {
+            total += 1 / Math.pow(key + 1, ZIPF);
+            cumulative[key] = total;
+        }
+    }
+
+    /**
+     * @param args main method argument, not used
+     */
+    public static void main(String[] args) {
+        try {
+            Registry registry = LocateRegistry.getRegistry("192.168.183.70", 1099); //Put IP of machine hosting RMI here.
+            RegistryOperations operator = (RegistryOperations) registry.lookup("operator");
+            List<Proxy> proxies = new ArrayList<>();
+            operator.getAllProxies().forEach(proxy -> proxies.add(proxy.getValue()));
+            if (proxies.isEmpty()) {
+                System.out.println("No proxies to connect to. Please try again.");
+                return;
+            }
+            LoadGenerator generator = new LoadGenerator(proxies);
+            if (CHILD) {
+                generator.run(THREADS, IN_FLIGHT);
+                generator.printResults();
+                System.exit(0);
+            }
+            System.out.println("Writing " + KEYS + " files through " + proxies.size() + " proxies");
+            generator.populate();
+            if (COMPARE) {
+                compare(proxies);
+                System.exit(0);
+            }
+            List<Process> children = new ArrayList<>();
+            for (int i = 1; i < PROCESSES; i++) {
+                children.add(startChild());
+            }
+            System.out.println("Running " + PROCESSES * THREADS + " threads in " + PROCESSES + " processes for " + DURATION_MS
+                    + " ms after a warmup of " + WARMUP_MS + " ms");
+            if (IN_FLIGHT > 1) {
+                System.out.println("Each thread keeps " + IN_FLIGHT + " requests in flight on " + AsyncCalls.mode() + " threads");
+            }
+            generator.run(THREADS, IN_FLIGHT);
+            for (Process child : children) {
+                generator.merge(child);
+            }
+            generator.report();
+            System.exit(0);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs the load with blocking calls and then through AsyncProxy, with the same number of requests in flight, in
+     * this process only. Each run starts from a fresh warmup and reports the most threads the process had during it.
+     */
+    private static void compare(List<Proxy> proxies) throws InterruptedException {
+        int concurrency = THREADS * IN_FLIGHT;
+        if (PROCESSES > 1) {
+            System.out.println("Comparing in this process only, -Ddfs.load.processes is ignored");
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        System.out.println("Blocking: " + concurrency + " threads with one request each, for " + DURATION_MS + " ms after a warmup of "
+                + WARMUP_MS + " ms");
+        LoadGenerator blocking = new LoadGenerator(proxies);
+        threadBean.resetPeakThreadCount();
+        blocking.run(concurrency, 1);
+        blocking.report();
+        System.out.println("Peak threads: " + threadBean.getPeakThreadCount());
+        System.out.println("AsyncProxy: " + THREADS + " threads with " + IN_FLIGHT + " requests each on " + AsyncCalls.mode()
+                + " threads");
+        LoadGenerator async = new LoadGenerator(proxies);
+        threadBean.resetPeakThreadCount();
+        async.run(THREADS, IN_FLIGHT);
+        async.report();
+        System.out.println("Peak threads: " + threadBean.getPeakThreadCount());
+    }
+
+    /**
+     * Writes every file once, so the reads find them.
+     */
+    private void populate() throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            Proxy proxy = proxies.get(t % proxies.size());
+            threads[t] = new Thread(() -> {
+                for (int key = next.getAndIncrement(); key < KEYS; key = next.getAndIncrement()) {
+                    write(proxy, key, false);
+                }
+            }, "load-populate-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Sends requests from every thread until the duration has passed. Requests that start during the warmup aren't
+     * measured. With more than one request in flight a thread only waits when all of its requests are still running,
+     * and once the duration has passed it waits for the ones it started.
+     * @param threadCount The threads that send requests.
+     * @param inFlight The requests each thread keeps in flight, 1 sends them with blocking calls.
+     */
+    private void run(int threadCount, int inFlight) throws InterruptedException {
+        long measureFrom = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MS);
+        long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            Proxy proxy = proxies.get(t % proxies.size());
+            AsyncProxy asyncProxy = new AsyncProxy(proxy);
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                Semaphore slots = new Semaphore(inFlight);
+                while (System.nanoTime() - end < 0) {
+                    boolean measured = System.nanoTime() - measureFrom >= 0;
+                    int key = pickKey(random.nextDouble());
+                    boolean read = random.nextDouble() < READ_RATIO;
+                    if (inFlight == 1) {
+                        if (read) {
+                            read(proxy, key, measured);
+                        } else {
+                            write(proxy, key, measured);
+                        }
+                    } else {
+                        slots.acquireUninterruptibly();
+                        (read ? readAsync(asyncProxy, key, measured) : writeAsync(asyncProxy, key, measured))
+                                .whenComplete((result, error) -> slots.release());
+                    }
+                }
+                slots.acquireUninterruptibly(inFlight);
+            }, "load-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void read(Proxy proxy, int key, boolean measured) {
+        long start = System.nanoTime();
+        try {
+            readDone(proxy.forwardRead(fileName(key)), null, start, measured);
+        } catch (RemoteException e) {
+            readDone(null, e, start, measured);
+        }
+    }
+
+    private CompletableFuture<FileData> readAsync(AsyncProxy proxy, int key, boolean measured) {
+        long start = System.nanoTime();
+        return proxy.forwardRead(fileName(key)).whenComplete((file, error) -> readDone(file, error, start, measured));
+    }
+
+    private void readDone(FileData file, Throwable error, long start, boolean measured) {
+        if (error != null) {
+            error("read." + cause(error).getClass().getSimpleName());
+            return;
+        }
+        if (file.status() != FileData.StatusCodeEnum.SUCCESS) {
+            error("read." + file.status());
+            return;
+        }
+        if (measured) {
+            reads.recordSince(start);
+            bytesRead.add(file.fileData() == null ? 0 : file.fileData().length);
+        }
+    }
+
+    private void write(Proxy proxy, int key, boolean measured) {
+        long start = System.nanoTime();
+        byte[] data = payloads.get(sizes[key]);
+        try {
+            writeDone(proxy.forwardWrite(fileName(key), data, Instant.now()), null, data, start, measured);
+        } catch (RemoteException e) {
+            writeDone(null, e, data, start, measured);
+        }
+    }
+
+    private CompletableFuture<FileData> writeAsync(AsyncProxy proxy, int key, boolean measured) {
+        long start = System.nanoTime();
+        byte[] data = payloads.get(sizes[key]);
+        return proxy.forwardWrite(fileName(key), data, Instant.now()).whenComplete((result, error) -> writeDone(result, error, data, start, measured));
+    }
+
+    private void writeDone(FileData result, Throwable error, byte[] data, long start, boolean measured) {
+        if (error != null) {
+            error("write." + cause(error).getClass().getSimpleName());
+            return;
+        }
+        // another thread wrote the same file at the same time, which is a normal outcome of the load
+        if (result.status() != FileData.StatusCodeEnum.SUCCESS && result.status() != FileData.StatusCodeEnum.OVERWRITTEN) {
+            error("write." + result.status());
+            return;
+        }
+        if (measured) {
+            writes.recordSince(start);
+            bytesWritten.add(data.length);
+        }
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private void error(String kind) {
+        errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Picks a file from the zipf distribution, the first files are picked the most.
+     * @param uniform A uniform random number between 0 and 1.
+     */
+    private int pickKey(double uniform) {
+        int key = Arrays.binarySearch(cumulative, uniform * cumulative[KEYS - 1]);
+        return Math.min(KEYS - 1, key < 0 ? -key - 1 : key);
+    }
+
+    private static String fileName(int key) {
+        return "load-" + key + ".bin";
+    }
+
+    private static int[][] parseSizes(String sizes) {
+        String[] pairs = sizes.split(",");
+        int[][] parsed = new int[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] pair = pairs[i].trim().split(":");
+            parsed[i] = new int[]{Integer.parseInt(pair[0]), pair.length > 1 ? Integer.parseInt(pair[1]) : 1};
+        }
+        return parsed;
+    }
+
+    /**
+     * Starts another process with the same settings. It runs the load at the same time as this one.
+     */
+    private static Process startChild() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith("dfs."))
+                .forEach(name -> command.add("-D" + name + "=" + System.getProperty(name)));
+        command.add("-Ddfs.load.child=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadGenerator.class.getName());
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    /**
+     * Prints the results of a child process for the first process to merge.
+     */
+    private void printResults() {
+        System.out.println(RESULT + "reads " + reads.export());
+        System.out.println(RESULT + "writes " + writes.export());
+        System.out.println(RESULT + "bytesRead " + bytesRead.sum());
+        System.out.println(RESULT + "bytesWritten " + bytesWritten.sum());
+        errors.forEach((kind, count) -> System.out.println(RESULT + "error " + kind + " " + count.sum()));
+    }
+
+    /**
+     * Waits for a child process and adds its results to the results of this one.
+     */
+    private void merge(Process child) throws IOException, InterruptedException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith(RESULT)) {
+                    continue;
+                }
+                String[] fields = line.substring(RESULT.length()).split(" ");
+                switch (fields[0]) {
+                    case "reads" -> reads.merge(fields[1]);
+                    case "writes" -> writes.merge(fields[1]);
+                    case "bytesRead" -> bytesRead.add(Long.parseLong(fields[1]));
+                    case "bytesWritten" -> bytesWritten.add(Long.parseLong(fields[1]));
+                    case "error" -> errors.computeIfAbsent(fields[1], k -> new LongAdder()).add(Long.parseLong(fields[2]));
+                    default -> {
+                    }
+                }
+            }
+        }
+        child.waitFor();
+    }
+
+    private void report() {
+        double seconds = DURATION_MS / 1000.0;
+        System.out.printf("%-6s %10s %10s %8s %10s %10s %10s %10s%n", "", "requests", "req/s", "MB/s", "p50 us", "p99 us", "p999 us", "max us");
+        print("read", reads, bytesRead.sum(), seconds);
+        print("write", writes, bytesWritten.sum(), seconds);
+        System.out.printf("total  %10d %10.1f%n", reads.count() + writes.count(), (reads.count() + writes.count()) / seconds);
+        if (!errors.isEmpty()) {
+            Map<String, Long> counts = new TreeMap<>();
+            errors.forEach((kind, count) -> counts.put(kind, count.sum()));
+            System.out.println("Errors: " + counts);
+        }
+    }
+
+    private static void print(String name, LatencyHistogram histogram, long bytes, double seconds) {
+        System.out.printf("%-6s %10d %10.1f %8.2f %10d %10d %10d %10d%n", name, histogram.count(), histogram.count() / seconds,
+                bytes / seconds / (1024 * 1024),
+                TimeUnit.NANOSECONDS.toMicros(histogram.valueAtPercentile(50)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.valueAtPercentile(99)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.valueAtPercentile(99.9)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.maxNanos()));
+    }
+}
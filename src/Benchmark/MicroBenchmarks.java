@@ -0,0 +1,402 @@
+package Benchmark;
+
+import Operator.RegistryOperationsImpl;
+import Server.AsyncCalls;
+import Server.BackendServiceImpl;
+import Server.Compression;
+import Server.FileData;
+import Server.LatencyHistogram;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the hot paths of a server, run in this process against a server of its own: FileData serialization,
+ * in its compact wire format next to the default serialization of the same fields with the bytes each takes on the
+ * wire, once with the data compressed on every round trip and once with a compressed form kept from earlier, the file
+ * locks, and read, readMany, write and replicaWrite of BackendServiceImpl called directly, without RMI in between.
+ * The server is the elected leader of a cluster of one, so write takes the leader's whole path but has no replicas
+ * to wait for.
+ * Each benchmark runs for -Ddfs.bench.warmupMs (2000) before it is measured for -Ddfs.bench.measureMs (5000), and
+ * -Ddfs.bench.filter picks the benchmarks to run by name. The locks and the writes run on each number of threads in
+ * -Ddfs.bench.threads (1,4,16,64) at once, named with a .t suffix, so contention on the locks and the write-ahead
+ * log's group commit shows up. The server keeps its files in FileStorage/ under the working directory, so run it from
+ * an empty directory.
+ * The data channel benchmarks send a file of each size in -Ddfs.bench.transferSizes (4 KB to 1 GB) over a loopback
+ * socket, once with FileChannel.transferTo like DataChannelServer does and once read into the heap with
+ * Files.readAllBytes first. The files are written to the working directory for the run, and the 1 GB read needs a
+ * heap of more than 1 GB.
+ * The asyncCalls benchmarks start each number of calls in -Ddfs.bench.asyncInFlight (1,16,256,1024) at once through
+ * AsyncCalls and wait for all of them. Each call blocks for a millisecond like a remote call waiting for its answer.
+ * They run in the execution mode of the process, so run them once with -Ddfs.executionMode=platform and once with
+ * virtual to compare the modes, on Java 21 for virtual threads. The most threads the process had is printed after each.
+ */
+public class MicroBenchmarks {
+    private static final long WARMUP_MS = Long.getLong("dfs.bench.warmupMs", 2_000L);
+    private static final long MEASURE_MS = Long.getLong("dfs.bench.measureMs", 5_000L);
+    private static final Pattern FILTER = Pattern.compile(System.getProperty("dfs.bench.filter", ".*"));
+    private static final int REGISTRY_PORT = Integer.getInteger("dfs.bench.registryPort", 1199);
+    private static final int FILES = 1000;
+    private static final int READ_MANY_FILES = 64;
+    private static final long[] TRANSFER_SIZES = Arrays.stream(System.getProperty("dfs.bench.transferSizes",
+            "4096,65536,1048576,16777216,268435456,1073741824").split(",")).mapToLong(size -> Long.parseLong(size.trim())).toArray();
+    private static final int[] ASYNC_IN_FLIGHT = Arrays.stream(System.getProperty("dfs.bench.asyncInFlight", "1,16,256,1024")
+            .split(",")).mapToInt(calls -> Integer.parseInt(calls.trim())).toArray();
+    private static final long CALL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int[] THREADS = Arrays.stream(System.getProperty("dfs.bench.threads", "1,4,16,64").split(","))
+            .mapToInt(threads -> Integer.parseInt(threads.trim())).toArray();
+
+    /**
+     * @param args main method argument, not used
+     */
+    public static void main(String[] args) {
+        try {
+            Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+            // the constructors are protected, an empty subclass reaches them
+            RegistryOperationsImpl operator = new RegistryOperationsImpl(registry) {
+            };
+            registry.bind("operator", operator);
+            BackendServiceImpl server = new BackendServiceImpl(registry) {
+            };
+            // the first server to send a heartbeat is elected, which makes this one the leader
+            server.startLease(operator, () -> {
+            });
+            long electedBy = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (server.getStats().get("lease.leader") != 1L) {
+                if (System.nanoTime() - electedBy > 0) {
+                    throw new IllegalStateException("The server wasn't elected leader");
+                }
+                Thread.sleep(10);
+            }
+            byte[] small = payload(4 * 1024);
+            byte[] medium = payload(64 * 1024);
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < FILES; i++) {
+                names.add("bench-" + i + ".bin");
+            }
+            // a version later than every earlier one, so each write replaces the file
+            Instant base = Instant.now();
+            AtomicLong writes = new AtomicLong();
+            // copies are only accepted from the current term
+            long term = server.getStats().get("lease.term");
+            for (String name : names) {
+                server.replicaWrite(name, small, base.plusNanos(writes.incrementAndGet()), term);
+            }
+            System.out.printf("%-32s %14s %10s %10s %10s%n", "benchmark", "ops/s", "p50 ns", "p99 ns", "p999 ns");
+            Map<String, byte[]> wirePayloads = new LinkedHashMap<>();
+            wirePayloads.put("status", null);
+            wirePayloads.put("0B", new byte[0]);
+            wirePayloads.put("1KB", payload(1024));
+            wirePayloads.put("4KB", small);
+            wirePayloads.put("64KB", medium);
+            wirePayloads.put("1MB", payload(1024 * 1024));
+            for (Map.Entry<String, byte[]> wirePayload : wirePayloads.entrySet()) {
+                FileData file = wirePayload.getValue() == null ? new FileData(null, null, FileData.StatusCodeEnum.SUCCESS)
+                        : new FileData("bench.bin", wirePayload.getValue(), FileData.StatusCodeEnum.SUCCESS, base);
+                roundTrips("fileData.roundTrip." + wirePayload.getKey(), file);
+                roundTrips("fileData.roundTrip.default." + wirePayload.getKey(),
+                        new DefaultFileData(file.fileName(), file.fileData(), file.status(), file.version()));
+            }
+            Compression.Encoded smallEncoded = Compression.encode(small);
+            Compression.Encoded mediumEncoded = Compression.encode(medium);
+            run("fileData.roundTrip.kept.4KB", i -> roundTrip(new FileData("bench.bin", small, FileData.StatusCodeEnum.SUCCESS, base, smallEncoded)));
+            run("fileData.roundTrip.kept.64KB", i -> roundTrip(new FileData("bench.bin", medium, FileData.StatusCodeEnum.SUCCESS, base, mediumEncoded)));
+            for (int threads : THREADS) {
+                // every thread locks the same file, so the threads contend for one lock
+                run("locks.read.t" + threads, threads, i -> {
+                    server.acquireReadLock("bench-0.bin");
+                    server.releaseReadLock("bench-0.bin");
+                });
+                run("locks.write.t" + threads, threads, i -> {
+                    server.acquireWriteLock("bench-0.bin");
+                    server.releaseWriteLock("bench-0.bin");
+                });
+                // every thread locks a file of its own, so only the lock manager's table is shared
+                run("locks.write.ownFile.t" + threads, threads, i -> {
+                    String name = names.get((int) (i % threads));
+                    server.acquireWriteLock(name);
+                    server.releaseWriteLock(name);
+                });
+            }
+            run("server.read.4KB", i -> server.read(names.get((int) (i % FILES))));
+            run("server.readMany." + READ_MANY_FILES, i -> {
+                int from = (int) (i % (FILES / READ_MANY_FILES)) * READ_MANY_FILES;
+                server.readMany(names.subList(from, from + READ_MANY_FILES), null);
+            });
+            for (int threads : THREADS) {
+                run("server.write.4KB.t" + threads, threads, i -> stored(server.write(names.get((int) (i % FILES)), small,
+                        base.plusNanos(writes.incrementAndGet()))));
+            }
+            for (int threads : THREADS) {
+                run("server.replicaWrite.4KB.t" + threads, threads, i -> stored(server.replicaWrite(names.get((int) (i % FILES)), small,
+                        base.plusNanos(writes.incrementAndGet()), term)));
+            }
+            asyncCalls();
+            transfers();
+            System.exit(0);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs batches of blocking calls on the executor of AsyncCalls, in the mode this process runs in.
+     */
+    private static void asyncCalls() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        String mode = AsyncCalls.mode().name().toLowerCase();
+        for (int inFlight : ASYNC_IN_FLIGHT) {
+            String name = "asyncCalls." + mode + ".x" + inFlight;
+            if (!FILTER.matcher(name).matches()) {
+                continue;
+            }
+            threadBean.resetPeakThreadCount();
+            run(name, i -> {
+                CompletableFuture<?>[] calls = new CompletableFuture<?>[inFlight];
+                for (int call = 0; call < inFlight; call++) {
+                    calls[call] = AsyncCalls.supply(() -> {
+                        LockSupport.parkNanos(CALL_NANOS);
+                        return null;
+                    });
+                }
+                CompletableFuture.allOf(calls).join();
+            });
+            System.out.println("    peak threads " + threadBean.getPeakThreadCount());
+        }
+    }
+
+    /**
+     * Sends files over a loopback socket to a thread that drops what it reads, with transferTo and with
+     * Files.readAllBytes. The connection stays open for all of them.
+     */
+    private static void transfers() throws Exception {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread sink = new Thread(() -> {
+                try (SocketChannel connection = listener.accept()) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                    while (connection.read(buffer.clear()) >= 0) {
+                        // the data is dropped
+                    }
+                } catch (IOException ignored) {
+                    // the benchmarks are over
+                }
+            }, "bench-sink");
+            sink.setDaemon(true);
+            sink.start();
+            try (SocketChannel socket = SocketChannel.open(listener.getLocalAddress())) {
+                for (long size : TRANSFER_SIZES) {
+                    String transferTo = "dataChannel.transferTo." + sizeName(size);
+                    String readAllBytes = "dataChannel.readAllBytes." + sizeName(size);
+                    if (!FILTER.matcher(transferTo).matches() && !FILTER.matcher(readAllBytes).matches()) {
+                        continue;
+                    }
+                    Path file = Paths.get("transfer-" + size + ".bin");
+                    writeFile(file, size);
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        run(transferTo, i -> {
+                            long position = 0;
+                            while (position < size) {
+                                position += channel.transferTo(position, size - position, socket);
+                            }
+                        });
+                        run(readAllBytes, i -> {
+                            ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+                            while (contents.hasRemaining()) {
+                                socket.write(contents);
+                            }
+                        });
+                    } finally {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a file of random bytes, a megabyte at a time.
+     */
+    private static void writeFile(Path file, long size) throws IOException {
+        byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+        new SplittableRandom(size).nextBytes(block);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - position));
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+            }
+        }
+    }
+
+    private static String sizeName(long size) {
+        if (size >= 1024 * 1024 * 1024 && size % (1024 * 1024 * 1024) == 0) {
+            return size / (1024 * 1024 * 1024) + "GB";
+        }
+        if (size >= 1024 * 1024 && size % (1024 * 1024) == 0) {
+            return size / (1024 * 1024) + "MB";
+        }
+        return size % 1024 == 0 ? size / 1024 + "KB" : size + "B";
+    }
+
+    /**
+     * Runs one benchmark on one thread.
+     */
+    private static void run(String name, Operation operation) throws Exception {
+        run(name, 1, operation);
+    }
+
+    /**
+     * Runs one benchmark if it matches the filter and prints its throughput over all threads and the latency
+     * percentiles of its calls. The threads warm up and are measured over the same time, and each one passes its own
+     * iterations, thread t of n passes t, t + n, t + 2n and so on.
+     */
+    private static void run(String name, int threads, Operation operation) throws Exception {
+        if (!FILTER.matcher(name).matches()) {
+            return;
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MS);
+        long end = start + TimeUnit.MILLISECONDS.toNanos(MEASURE_MS);
+        AtomicLong finished = new AtomicLong(end);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    long i = 0;
+                    while (System.nanoTime() - start < 0) {
+                        operation.run(i++ * threads + thread);
+                    }
+                    long operationStart = System.nanoTime();
+                    while (operationStart - end < 0) {
+                        operation.run(i++ * threads + thread);
+                        long now = System.nanoTime();
+                        histogram.record(now - operationStart);
+                        operationStart = now;
+                    }
+                    finished.accumulateAndGet(operationStart, Math::max);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        double seconds = (finished.get() - start) / 1e9;
+        System.out.printf("%-32s %14.1f %10d %10d %10d%n", name, histogram.count() / seconds, histogram.valueAtPercentile(50),
+                histogram.valueAtPercentile(99), histogram.valueAtPercentile(99.9));
+    }
+
+    /**
+     * Fails the benchmark if a write was refused, so it never measures how fast the server says no. A write that lost
+     * to a later version written by another thread is fine.
+     */
+    private static void stored(FileData result) {
+        if (result.status() != FileData.StatusCodeEnum.SUCCESS && result.status() != FileData.StatusCodeEnum.OVERWRITTEN) {
+            throw new IllegalStateException("The write was refused with " + result.status());
+        }
+    }
+
+    /**
+     * Runs a round trip benchmark of a file and prints how many bytes the file takes on the wire.
+     */
+    private static void roundTrips(String name, Object file) throws Exception {
+        if (!FILTER.matcher(name).matches()) {
+            return;
+        }
+        run(name, i -> roundTrip(file));
+        System.out.println("    wire bytes " + serialize(file).length);
+    }
+
+    /**
+     * Serializes a file the way RMI sends it and reads it back.
+     */
+    private static Object roundTrip(Object file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(file)))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * @return The bytes of a file in its own stream, like RMI writes each argument and result.
+     */
+    private static byte[] serialize(Object file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(file);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Text-like contents, so the benchmarks include compression. The plain round trips compress the payload every time,
+     * like a file sent for the first time. The kept round trips pass its compressed form along, like a cached file a
+     * server sends again, so they only measure the encoding and the decompression.
+     */
+    private static byte[] payload(int size) {
+        String[] words = {"file", "server", "proxy", "replica", "lease", "version", "chunk", "block", "write", "read"};
+        SplittableRandom random = new SplittableRandom(size);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(1000)).append(' ');
+        }
+        return text.substring(0, size).getBytes();
+    }
+
+    /**
+     * The fields of FileData with the default serialization, as FileData was sent before it had a wire format of its
+     * own, so the fileData.roundTrip.default benchmarks compare the two.
+     */
+    private record DefaultFileData(String fileName, byte[] fileData, FileData.StatusCodeEnum status, Instant version)
+            implements Serializable {
+    }
+
+    /**
+     * One call of a benchmark.
+     */
+    @FunctionalInterface
+    private interface Operation {
+        void run(long iteration) throws Exception;
+    }
+}
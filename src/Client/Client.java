@@ -3,11 +3,22 @@ package Client;
 import Operator.RegistryOperations;
 import Proxy.Proxy;
 import Server.FileData;
+import Server.TransferSession;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -15,11 +26,19 @@ import java.time.Instant;
 import java.util.*;
 
 public class Client {
+    private static final int BATCH_FILES = Integer.getInteger("dfs.batchFiles", 256);
+    private static final long BATCH_BYTES = Long.getLong("dfs.batchBytes", 8L * 1024 * 1024);
+    // larger files are uploaded on their own, in chunks; on download the server decides which files it leaves out
+    private static final long BATCH_MAX_FILE_BYTES = Long.getLong("dfs.batchMaxFileBytes", 1024 * 1024);
+    // files up to one chunk are uploaded in a single call instead of opening a write session
+    private static final long SINGLE_WRITE_MAX_BYTES = Integer.getInteger("dfs.chunkSize", 1024 * 1024);
     private static final Scanner myScanner = new Scanner(System.in);
     private static Map.Entry<String, Proxy> proxy;
 
     private static RegistryOperations operator;
 
+    private static DownloadIndex downloadIndex;
+
     /**
      * Main method of client program. Handles setting proxy and user Input through menu based interface.
      *
@@ -50,6 +69,10 @@ public class Client {
                 getUserInputAndDownload();
             } else if (input.equalsIgnoreCase("u")) {
                 getUserInputAndUpload();
+            } else if (input.equalsIgnoreCase("f")) {
+                getUserInputAndUploadFolder();
+            } else if (input.equalsIgnoreCase("m")) {
+                getUserInputAndDownloadMany();
             } else {
                 System.out.println("That is not a valid input. Try again\n");
             }
@@ -74,6 +97,8 @@ public class Client {
 
     /**
      * Handles reading local file and calling proxy method for uploading file.
+     * A file of up to one chunk is sent in a single call, a larger one is sent one chunk at a time so only a single
+     * chunk is held in memory.
      *
      * @param filePath The absolute file path for the file to be uploaded. gotten from the user
      * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
@@ -82,7 +107,6 @@ public class Client {
         try {
             Path path = Paths.get(filePath);
             if (Files.exists(path)) {
-                byte[] data = Files.readAllBytes(path);
                 if (proxy == null) {
                     proxy = getRandomProxy();
                     if (proxy == null) {
@@ -90,13 +114,21 @@ public class Client {
                         return;
                     }
                 }
-                FileData.StatusCodeEnum writeStatus = proxy.getValue().forwardWrite(path.getFileName().toString(), data, Instant.now()).status();
+                FileData.StatusCodeEnum writeStatus = Files.size(path) <= SINGLE_WRITE_MAX_BYTES
+                        ? proxy.getValue().forwardWrite(path.getFileName().toString(), Files.readAllBytes(path), Instant.now()).status()
+                        : uploadInChunks(path);
                 if (writeStatus == FileData.StatusCodeEnum.NO_SERVERS) {
                     System.out.println("There are no servers to complete your request");
                 } else if (writeStatus == FileData.StatusCodeEnum.OTHER) {
                     System.out.println("Upload failed, Please double check your file path");
                 } else if (writeStatus == FileData.StatusCodeEnum.OVERWRITTEN) {
                     System.out.println("Your upload came in late so it was overwritten.");
+                } else if (writeStatus == FileData.StatusCodeEnum.SESSION_EXPIRED) {
+                    System.out.println("Upload was interrupted, Please try again.");
+                } else if (writeStatus == FileData.StatusCodeEnum.UNDER_REPLICATED) {
+                    System.out.println("Upload was saved but not enough replicas confirmed it yet.");
+                } else if (writeStatus == FileData.StatusCodeEnum.NOT_LEADER) {
+                    System.out.println("The servers are changing who stores this file, Please try again.");
                 } else {
                     System.out.println("Upload completed through " + proxy.getKey() + "\n");
                 }
@@ -113,6 +145,238 @@ public class Client {
         }
     }
 
+    /**
+     * Opens a write session through the proxy, sends the file in chunks of the size the server asked for and commits it.
+     *
+     * @param path The local file to upload.
+     * @return The status of the upload.
+     * @throws IOException If the local file can't be read or the proxy fails.
+     */
+    private static FileData.StatusCodeEnum uploadInChunks(Path path) throws IOException {
+        TransferSession session = proxy.getValue().forwardOpenWrite(path.getFileName().toString(), Files.size(path), Instant.now());
+        if (session.status() != FileData.StatusCodeEnum.SUCCESS) {
+            return session.status();
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(session.chunkSize());
+            long offset = 0;
+            int read;
+            while ((read = in.read(buffer.clear())) >= 0) {
+                byte[] chunk = read == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), read);
+                FileData.StatusCodeEnum chunkStatus = proxy.getValue().forwardWriteChunk(session.sessionId(), offset, new FileData(null, chunk, null)).status();
+                if (chunkStatus != FileData.StatusCodeEnum.SUCCESS) {
+                    proxy.getValue().forwardCloseSession(session.sessionId());
+                    return chunkStatus;
+                }
+                offset += read;
+            }
+        }
+        return proxy.getValue().forwardCommitWrite(session.sessionId()).status();
+    }
+
+    /**
+     * Gets the user input for the folder to upload. Calls another method that handles the actual uploading.
+     *
+     * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
+     */
+    private static void getUserInputAndUploadFolder() throws RemoteException {
+        System.out.println("Please enter the full path of the folder you would like to upload:");
+        String folderString = myScanner.nextLine();
+        while (folderString.isEmpty()) {
+            folderString = myScanner.nextLine();
+        }
+        System.out.println("\nBulk upload started.");
+        performBulkUpload(Paths.get(folderString));
+    }
+
+    /**
+     * Uploads every file in a folder. Small files are sent many at a time, up to BATCH_FILES files or BATCH_BYTES
+     * bytes per call, so a folder of many small files doesn't cost one round trip per file. Files bigger than
+     * BATCH_MAX_FILE_BYTES are uploaded on their own.
+     *
+     * @param folder The folder to upload. Sub folders are not uploaded.
+     * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
+     */
+    private static void performBulkUpload(Path folder) throws RemoteException {
+        if (!Files.isDirectory(folder)) {
+            System.out.println("\nThat is not a valid folder please try again.\n");
+            return;
+        }
+        if (proxy == null) {
+            proxy = getRandomProxy();
+            if (proxy == null) {
+                System.out.println("No proxies available to fulfill your request. Please connect a proxy and try again.");
+                return;
+            }
+        }
+        Map<FileData.StatusCodeEnum, Integer> counts = new EnumMap<>(FileData.StatusCodeEnum.class);
+        List<FileData> batch = new ArrayList<>();
+        long batchBytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                long size = Files.size(file);
+                if (size > BATCH_MAX_FILE_BYTES) {
+                    performUpload(file.toString());
+                    continue;
+                }
+                batch.add(new FileData(file.getFileName().toString(), Files.readAllBytes(file), null, Instant.now()));
+                batchBytes += size;
+                if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES) {
+                    sendBatch(batch, counts);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Exception thrown while reading the folder\n" + e.getMessage());
+        }
+        if (!batch.isEmpty()) {
+            sendBatch(batch, counts);
+        }
+        printSummary("Bulk upload", counts);
+    }
+
+    /**
+     * Sends one batch of files to the proxy, and to another proxy if it fails.
+     *
+     * @param batch The files to write.
+     * @param counts The number of files with each status so far, updated with the statuses of the batch.
+     * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
+     */
+    private static void sendBatch(List<FileData> batch, Map<FileData.StatusCodeEnum, Integer> counts) throws RemoteException {
+        List<FileData> results;
+        try {
+            results = proxy.getValue().forwardWriteMany(batch);
+        } catch (RemoteException e) {
+            operator.unBindRemoteObject(proxy.getKey());
+            proxy = getRandomProxy();
+            if (proxy == null) {
+                counts.merge(FileData.StatusCodeEnum.NO_SERVERS, batch.size(), Integer::sum);
+                return;
+            }
+            sendBatch(batch, counts);
+            return;
+        }
+        results.forEach(result -> counts.merge(result.status(), 1, Integer::sum));
+    }
+
+    /**
+     * Gets the user input for the files to download. Calls another method that handles the actual downloading.
+     *
+     * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
+     */
+    private static void getUserInputAndDownloadMany() throws RemoteException {
+        System.out.println("Please enter the names of the files separated by commas, or the full path of a text file with one name per line:");
+        String input = myScanner.nextLine();
+        while (input.isEmpty()) {
+            input = myScanner.nextLine();
+        }
+        List<String> fileNames = new ArrayList<>();
+        try {
+            Path list = Paths.get(input);
+            List<String> names = Files.isRegularFile(list) ? Files.readAllLines(list) : Arrays.asList(input.split(","));
+            for (String name : names) {
+                if (!name.trim().isEmpty()) {
+                    fileNames.add(name.trim());
+                }
+            }
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Could not read the list of files " + e.getMessage());
+            return;
+        }
+        System.out.println("\nBulk download started.");
+        performBulkDownload(fileNames);
+    }
+
+    /**
+     * Downloads many files, BATCH_FILES at a time. Files the server left out of the batch because they are bigger
+     * than one chunk come back without their data and are downloaded on their own. The versions in the download index
+     * are sent with the batch, so files that didn't change aren't sent again. The index is saved once per batch.
+     *
+     * @param fileNames The names of the files to download.
+     * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
+     */
+    private static void performBulkDownload(List<String> fileNames) throws RemoteException {
+        if (proxy == null) {
+            proxy = getRandomProxy();
+            if (proxy == null) {
+                System.out.println("No proxies available to fulfill your request. Please connect a proxy and try again.\n");
+                return;
+            }
+        }
+        Map<FileData.StatusCodeEnum, Integer> counts = new EnumMap<>(FileData.StatusCodeEnum.class);
+        try {
+            Path directoryPath = Paths.get("downloadedFiles");
+            if (Files.notExists(directoryPath)) {
+                Files.createDirectory(directoryPath);
+            }
+            if (downloadIndex == null) {
+                downloadIndex = new DownloadIndex(directoryPath);
+            }
+            for (int start = 0; start < fileNames.size(); start += BATCH_FILES) {
+                List<String> batch = fileNames.subList(start, Math.min(fileNames.size(), start + BATCH_FILES));
+                List<Instant> knownVersions = new ArrayList<>(batch.size());
+                batch.forEach(fileName -> knownVersions.add(downloadIndex.knownVersion(directoryPath.resolve(fileName))));
+                List<FileData> results = receiveBatch(batch, knownVersions);
+                Map<Path, Instant> versions = new HashMap<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    FileData result = results == null ? new FileData(batch.get(i), null, FileData.StatusCodeEnum.NO_SERVERS) : results.get(i);
+                    if (result.status() == FileData.StatusCodeEnum.SUCCESS && result.fileData() == null) {
+                        performDownload(batch.get(i));
+                        continue;
+                    }
+                    if (result.status() == FileData.StatusCodeEnum.SUCCESS) {
+                        Path target = directoryPath.resolve(batch.get(i));
+                        Files.write(target, result.fileData());
+                        versions.put(target, result.version());
+                    }
+                    counts.merge(result.status(), 1, Integer::sum);
+                }
+                downloadIndex.recordAll(versions);
+            }
+        } catch (IOException e) {
+            System.out.println("Exception thrown while performing the read operation\n" + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        printSummary("Bulk download", counts);
+    }
+
+    /**
+     * Reads one batch of files through the proxy, and through another proxy if it fails.
+     *
+     * @param batch The names of the files to read.
+     * @param knownVersions The version of each file in the download directory, null where there is none.
+     * @return The files in the same order, or null if there are no proxies left.
+     * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
+     */
+    private static List<FileData> receiveBatch(List<String> batch, List<Instant> knownVersions) throws RemoteException {
+        try {
+            return proxy.getValue().forwardReadMany(new ArrayList<>(batch), knownVersions);
+        } catch (RemoteException e) {
+            operator.unBindRemoteObject(proxy.getKey());
+            proxy = getRandomProxy();
+            return proxy == null ? null : receiveBatch(batch, knownVersions);
+        }
+    }
+
+    /**
+     * Prints how many files of a bulk upload or download ended with each status.
+     *
+     * @param operation The name of the operation.
+     * @param counts The number of files with each status.
+     */
+    private static void printSummary(String operation, Map<FileData.StatusCodeEnum, Integer> counts) {
+        System.out.println(operation + " finished" + (proxy == null ? "" : " through " + proxy.getKey()) + ":");
+        if (counts.isEmpty()) {
+            System.out.println("\tNo files were sent together, see above for the files sent on their own.");
+        }
+        counts.forEach((status, count) -> System.out.println("\t" + status + ": " + count));
+        System.out.println();
+    }
+
     /**
      * Gets the user input for file path to download. Calls another method that handles actual downloading.
      *
@@ -130,6 +394,8 @@ public class Client {
 
     /**
      * Handles calling proxy object download file method. Interprets return results.
+     * Large files are received one chunk at a time and written straight to disk.
+     * If the file was downloaded before, the proxy is told which version we have and only sends the file if it changed.
      *
      * @param fileName The name of the file with the extension. gotten from the user
      * @throws RemoteException Required as part of java RMI. Used to catch failures for fault tolerance.
@@ -143,17 +409,29 @@ public class Client {
                     return;
                 }
             }
-            FileData downloadedData = proxy.getValue().forwardRead(fileName);
             Path directoryPath = Paths.get("downloadedFiles");
             if (Files.notExists(directoryPath)) {
                 Files.createDirectory(directoryPath);
             }
-            if (downloadedData.fileData() != null) {
-                Files.write(directoryPath.resolve(downloadedData.fileName()), downloadedData.fileData());
-                System.out.println("Download Complete from " + proxy.getKey() + "\n");
-            } else if (downloadedData.status() == FileData.StatusCodeEnum.NO_SERVERS) {
+            if (downloadIndex == null) {
+                downloadIndex = new DownloadIndex(directoryPath);
+            }
+            Instant knownVersion = downloadIndex.knownVersion(directoryPath.resolve(fileName));
+            TransferSession session = proxy.getValue().forwardOpenRead(fileName, knownVersion);
+            if (session.status() == FileData.StatusCodeEnum.SUCCESS) {
+                Path target = directoryPath.resolve(session.fileName());
+                FileData.StatusCodeEnum readStatus = receiveFile(session, target);
+                if (readStatus == FileData.StatusCodeEnum.SUCCESS) {
+                    downloadIndex.record(target, session.version());
+                    System.out.println("Download Complete from " + proxy.getKey() + "\n");
+                } else {
+                    System.out.println("Download was interrupted, Please try again.");
+                }
+            } else if (session.status() == FileData.StatusCodeEnum.NOT_MODIFIED) {
+                System.out.println("Your copy of " + fileName + " in downloadedFiles is already up to date.\n");
+            } else if (session.status() == FileData.StatusCodeEnum.NO_SERVERS) {
                 System.out.println("There are no servers to complete your request");
-            } else if (downloadedData.status() == FileData.StatusCodeEnum.OTHER) {
+            } else if (session.status() == FileData.StatusCodeEnum.OTHER) {
                 System.out.println("Download failed, Please double check the file name.");
             }
         } catch (RemoteException e) {
@@ -166,6 +444,103 @@ public class Client {
         }
     }
 
+    /**
+     * Writes a downloaded file to disk. Small files come back inline with the session. Larger ones are streamed from
+     * the server's data channel if it has one, and read chunk by chunk through the proxy otherwise.
+     *
+     * @param session The read session returned by the proxy.
+     * @param target The local file to write to.
+     * @return The status of the download.
+     * @throws IOException If the local file can't be written or the proxy fails.
+     */
+    private static FileData.StatusCodeEnum receiveFile(TransferSession session, Path target) throws IOException {
+        if (session.data() != null) {
+            Files.write(target, session.data());
+            return FileData.StatusCodeEnum.SUCCESS;
+        }
+        try {
+            SocketChannel socket = openDataChannel(session);
+            if (socket != null) {
+                try (socket) {
+                    FileData.StatusCodeEnum status = receiveOverDataChannel(socket, session, target);
+                    if (status != null) {
+                        return status;
+                    }
+                }
+                System.out.println("The data channel is busy, downloading through the proxy instead.");
+            }
+            try (OutputStream out = Files.newOutputStream(target)) {
+                long offset = 0;
+                while (offset < session.fileSize()) {
+                    FileData chunk = proxy.getValue().forwardReadChunk(session.sessionId(), offset, session.chunkSize());
+                    if (chunk.status() != FileData.StatusCodeEnum.SUCCESS || chunk.fileData().length == 0) {
+                        return chunk.status() == FileData.StatusCodeEnum.SUCCESS ? FileData.StatusCodeEnum.OTHER : chunk.status();
+                    }
+                    out.write(chunk.fileData());
+                    offset += chunk.fileData().length;
+                }
+            }
+        } finally {
+            proxy.getValue().forwardCloseSession(session.sessionId());
+        }
+        return FileData.StatusCodeEnum.SUCCESS;
+    }
+
+    /**
+     * Connects to the data channel of the server holding the session.
+     *
+     * @param session The read session returned by the proxy.
+     * @return The connected socket, or null if the server has no data channel or it can't be reached.
+     */
+    private static SocketChannel openDataChannel(TransferSession session) {
+        if (session.dataHost() == null || session.dataPort() <= 0) {
+            return null;
+        }
+        try {
+            return SocketChannel.open(new InetSocketAddress(session.dataHost(), session.dataPort()));
+        } catch (IOException e) {
+            System.out.println("Could not reach the data channel, downloading through the proxy instead.");
+            return null;
+        }
+    }
+
+    /**
+     * Asks the data channel for the session and copies the file from the socket straight into the target file.
+     *
+     * @param socket Socket connected to the server's data channel.
+     * @param session The read session returned by the proxy.
+     * @param target The local file to write to.
+     * @return The status of the download, or null if the server closed the connection without taking the session.
+     * @throws IOException If the connection breaks or the local file can't be written.
+     */
+    private static FileData.StatusCodeEnum receiveOverDataChannel(SocketChannel socket, TransferSession session, Path target) throws IOException {
+        DataOutputStream request = new DataOutputStream(Channels.newOutputStream(socket));
+        request.writeUTF(session.sessionId());
+        request.flush();
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        while (header.hasRemaining()) {
+            if (socket.read(header) < 0) {
+                // a busy server closes the connection before it reads the session id, so the session is still open
+                return null;
+            }
+        }
+        long size = header.flip().getLong();
+        if (size < 0) {
+            return FileData.StatusCodeEnum.SESSION_EXPIRED;
+        }
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long received = out.transferFrom(socket, position, size - position);
+                if (received <= 0) {
+                    return FileData.StatusCodeEnum.SESSION_EXPIRED;
+                }
+                position += received;
+            }
+        }
+        return FileData.StatusCodeEnum.SUCCESS;
+    }
+
     /**
      * Prints the main menu for the user to use our system.
      */
@@ -173,11 +548,15 @@ public class Client {
         System.out.println("Welcome to your distributed file system. Please select one of the following options:");
         System.out.println("\t- Download a file (D)");
         System.out.println("\t- Upload a file (U)");
+        System.out.println("\t- Upload every file in a folder (F)");
+        System.out.println("\t- Download several files (M)");
         System.out.println("\t- Exit (E)");
     }
 
     /**
-     * This gets a random proxy to connect to from the proxies in the RMI registry.
+     * This gets a random proxy to connect to from the operator's membership view.
+     * Only called when the client starts and after a proxy failed, so the view isn't kept up to date in between.
+     * Only the proxies are asked for, receiving the server stubs would make the client contact every server.
      *
      * @return returns a proxy object along with its name in order to use for the operation.
      */
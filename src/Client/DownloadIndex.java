@@ -0,0 +1,92 @@
+package Client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers which version of each file is in the download directory, so a download can ask the proxy to only
+ * send the file if it has changed. The size and modification time of the local copy are stored with the version,
+ * and a local copy that was changed since it was downloaded is downloaded again.
+ */
+class DownloadIndex {
+    private final Path indexFile;
+    private final Properties entries = new Properties();
+
+    /**
+     * @param directory The download directory. The index is stored in it as a hidden file.
+     */
+    DownloadIndex(Path directory) {
+        this.indexFile = directory.resolve(".index");
+        if (Files.exists(indexFile)) {
+            try (InputStream in = Files.newInputStream(indexFile)) {
+                entries.load(in);
+            } catch (IOException e) {
+                System.out.println("Could not read the download index, files will be downloaded again.");
+            }
+        }
+    }
+
+    /**
+     * @param file The local copy of a downloaded file.
+     * @return The version the local copy was downloaded at, or null if it is missing, unknown or was changed since.
+     */
+    synchronized Instant knownVersion(Path file) {
+        String entry = entries.getProperty(file.getFileName().toString());
+        if (entry == null || Files.notExists(file)) {
+            return null;
+        }
+        String[] fields = entry.split(",");
+        try {
+            if (fields.length != 3 || Files.size(file) != Long.parseLong(fields[1])
+                    || Files.getLastModifiedTime(file).toMillis() != Long.parseLong(fields[2])) {
+                return null;
+            }
+            return Instant.parse(fields[0]);
+        } catch (IOException | NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the version of a file that was just downloaded and saves the index.
+     * @param file The local copy of the file.
+     * @param version The version that was downloaded, null if the server didn't know it.
+     */
+    synchronized void record(Path file, Instant version) {
+        recordAll(Collections.singletonMap(file, version));
+    }
+
+    /**
+     * Records the versions of many files that were just downloaded and saves the index once.
+     * @param versions The local copy of every file and the version that was downloaded, null if it isn't known.
+     */
+    synchronized void recordAll(Map<Path, Instant> versions) {
+        try {
+            for (Map.Entry<Path, Instant> download : versions.entrySet()) {
+                Path file = download.getKey();
+                String name = file.getFileName().toString();
+                if (download.getValue() == null) {
+                    entries.remove(name);
+                } else {
+                    entries.setProperty(name, download.getValue() + "," + Files.size(file) + "," + Files.getLastModifiedTime(file).toMillis());
+                }
+            }
+            Path tempFile = indexFile.resolveSibling(".index.tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                entries.store(out, "Downloaded file versions");
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not update the download index " + e.getMessage());
+        }
+    }
+}
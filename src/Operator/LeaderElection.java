@@ -0,0 +1,177 @@
+package Operator;
+
+import Server.BackendService;
+
+import java.rmi.RemoteException;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease based leader election, run by the operator.
+ * Every server sends a heartbeat every heartbeat interval once it has joined. The leader holds a lease that each of
+ * its heartbeats renews. When the leader misses heartbeats for a whole lease, the lease runs out and the server that
+ * is live and has the most recent writes is elected in a new term, so a failed leader is replaced within one lease
+ * and one heartbeat interval, without waiting for a client call to fail.
+ * Only the operator elects, so two proxies can never promote different servers.
+ */
+class LeaderElection {
+    private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(LeaderLease.LEASE_MS);
+
+    private final RegistryOperationsImpl operations;
+    private final Map<String, Member> members = new HashMap<>();
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "leader-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long term;
+    private String leaderId;
+    private String leaderName;
+    private BackendService leader;
+    private long leaseExpires;
+
+    LeaderElection(RegistryOperationsImpl operations) {
+        this.operations = operations;
+        monitor.scheduleWithFixedDelay(this::expire, LeaderLease.HEARTBEAT_MS, LeaderLease.HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a heartbeat. The leader's heartbeat renews its lease, and if there is no leader one is elected right away.
+     * @param nodeId The node id of the server.
+     * @param server The server.
+     * @param latestWrite The time stamp of the latest write the server stored, null if it has none.
+     * @return The current lease.
+     */
+    synchronized LeaderLease heartbeat(String nodeId, BackendService server, Instant latestWrite) {
+        long now = System.nanoTime();
+        Member previous = members.put(nodeId, new Member(server, now, latestWrite));
+        if (previous != null && !previous.server.equals(server) && !nodeId.equals(leaderId)) {
+            // the server restarted before the operator noticed its heartbeats stopped, its old stub is dead
+            unbindOtherNames(previous.server);
+        }
+        if (nodeId.equals(leaderId)) {
+            leaseExpires = now + LEASE_NANOS;
+        } else if (leaderId == null) {
+            elect();
+        }
+        LeaderLease lease = lease();
+        // a server only sends heartbeats once it has joined, so if it isn't bound any more it was unbound after
+        // missing heartbeats and has to join again
+        if (!nodeId.equals(leaderId) && !operations.getMembership().servers().containsValue(server)) {
+            return new LeaderLease(lease.term(), lease.leaderId(), lease.leaderName(), lease.leader(), lease.remainingMs(), true);
+        }
+        return lease;
+    }
+
+    /**
+     * @return The current leader and the name it is bound under, or an empty name and null if there is none.
+     */
+    synchronized Map.Entry<String, BackendService> leader() {
+        if (leaderId == null) {
+            return new AbstractMap.SimpleEntry<>("", null);
+        }
+        return new AbstractMap.SimpleEntry<>(leaderName, leader);
+    }
+
+    synchronized LeaderLease lease() {
+        long remaining = leaderId == null ? 0 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(leaseExpires - System.nanoTime()));
+        return new LeaderLease(term, leaderId, leaderName, leader, remaining, false);
+    }
+
+    /**
+     * Unbinds servers that stopped sending heartbeats, so they leave every membership view without a proxy or server
+     * having to unbind them after a failed call. Elects a new leader once the lease of the current one ran out.
+     */
+    private synchronized void expire() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<String, Member>> iterator = members.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Member> member = iterator.next();
+            if (now - member.getValue().lastHeartbeat > LEASE_NANOS) {
+                iterator.remove();
+                if (!member.getKey().equals(leaderId)) {
+                    System.out.println("Heartbeats of " + member.getKey() + " stopped, unbinding it");
+                    unbindOtherNames(member.getValue().server);
+                }
+            }
+        }
+        if (leaderId != null && now - leaseExpires >= 0) {
+            System.out.println("Lease of " + leaderName + " expired in term " + term);
+            operations.unBindRemoteObject(leaderName);
+            leaderId = null;
+            leaderName = null;
+            leader = null;
+            elect();
+        }
+    }
+
+    /**
+     * Elects the live server with the most recent write, ties broken by node id, and binds it as the central authority.
+     */
+    private void elect() {
+        Map.Entry<String, Member> best = null;
+        for (Map.Entry<String, Member> candidate : members.entrySet()) {
+            if (best == null || isBetter(candidate, best)) {
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            return;
+        }
+        BackendService newLeader = best.getValue().server;
+        term++;
+        leaderId = best.getKey();
+        leaderName = "centralAuthority" + newLeader.hashCode();
+        leader = newLeader;
+        leaseExpires = System.nanoTime() + LEASE_NANOS;
+        unbindOtherNames(newLeader);
+        operations.setNewCentralAuthority(leaderName, newLeader);
+        System.out.println("Elected " + leaderName + " as leader in term " + term);
+        String name = leaderName;
+        notifier.execute(() -> {
+            try {
+                newLeader.becomeLeader();
+            } catch (RemoteException e) {
+                System.out.println("Could not tell " + name + " it was elected, it will find out from its next heartbeat");
+            }
+        });
+    }
+
+    private static boolean isBetter(Map.Entry<String, Member> candidate, Map.Entry<String, Member> best) {
+        Instant candidateWrite = candidate.getValue().latestWrite;
+        Instant bestWrite = best.getValue().latestWrite;
+        if (candidateWrite != null && (bestWrite == null || candidateWrite.isAfter(bestWrite))) {
+            return true;
+        }
+        if (bestWrite != null && (candidateWrite == null || bestWrite.isAfter(candidateWrite))) {
+            return false;
+        }
+        return candidate.getKey().compareTo(best.getKey()) < 0;
+    }
+
+    /**
+     * Unbinds the names a server is bound under as a replica. Used when it is elected, it is then only bound as the
+     * central authority, and when its heartbeats stopped.
+     */
+    private void unbindOtherNames(BackendService server) {
+        for (Map.Entry<String, BackendService> bound : operations.getMembership().servers().entrySet()) {
+            if (server.equals(bound.getValue()) && !bound.getKey().contains("centralAuthority")) {
+                operations.unBindRemoteObject(bound.getKey());
+            }
+        }
+    }
+
+    private record Member(BackendService server, long lastHeartbeat, Instant latestWrite) {
+    }
+}
@@ -0,0 +1,22 @@
+package Operator;
+
+import Server.BackendService;
+
+import java.io.Serializable;
+
+/**
+ * The operator's answer to a heartbeat: which server holds the leader lease and for how much longer.
+ * The term goes up every time a new leader is elected. Writes the leader sends to its replicas carry the term, so a
+ * replica that has already seen a newer term rejects the writes of a leader that lost its lease.
+ * The heartbeat interval and lease duration have to be the same on every process (-Ddfs.heartbeatMs, -Ddfs.leaseMs).
+ * @param term The current term, 0 if no leader was ever elected.
+ * @param leaderId The node id of the leader, null if there is none.
+ * @param leaderName The name the leader is bound under in the registry, null if there is none.
+ * @param leader The leader, null if there is none.
+ * @param remainingMs How long the lease is still valid for, measured by the operator when it answered.
+ * @param rejoin true if the operator had unbound the server because its heartbeats stopped, so it has to join again.
+ */
+public record LeaderLease(long term, String leaderId, String leaderName, BackendService leader, long remainingMs, boolean rejoin) implements Serializable {
+    public static final long HEARTBEAT_MS = Long.getLong("dfs.heartbeatMs", 500L);
+    public static final long LEASE_MS = Math.max(2 * HEARTBEAT_MS, Long.getLong("dfs.leaseMs", 2_000L));
+}
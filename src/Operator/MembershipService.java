@@ -0,0 +1,76 @@
+package Operator;
+
+import Proxy.Proxy;
+import Server.BackendService;
+
+import java.rmi.Remote;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The membership view kept by the operator. Every bind and unbind goes through the operator, so the view is updated
+ * in memory as they happen and never has to be read back from the registry.
+ * Callers that cache the view wait for the next change with a long poll instead of asking again on every request.
+ */
+class MembershipService {
+    private static final long MAX_WAIT_MS = 30_000L;
+
+    private final Map<String, BackendService> servers = new HashMap<>();
+    private final Map<String, Proxy> proxies = new HashMap<>();
+    private final String incarnation = UUID.randomUUID().toString();
+    private MembershipView view = new MembershipView(incarnation, 0, Map.of(), Map.of());
+
+    /**
+     * @param name The name the object was bound under.
+     * @param object The bound object. Only servers and proxies are part of the view.
+     */
+    synchronized void bound(String name, Remote object) {
+        if (object instanceof BackendService server && isServerName(name)) {
+            servers.put(name, server);
+        } else if (object instanceof Proxy proxy && (name.contains("proxy") || name.contains("Proxy"))) {
+            proxies.put(name, proxy);
+        } else {
+            return;
+        }
+        publish();
+    }
+
+    /**
+     * @param name The name that was unbound.
+     */
+    synchronized void unbound(String name) {
+        if (servers.remove(name) != null || proxies.remove(name) != null) {
+            publish();
+        }
+    }
+
+    synchronized MembershipView current() {
+        return view;
+    }
+
+    /**
+     * Waits until the view changes.
+     * @param knownEpoch The epoch of the view the caller has.
+     * @param timeoutMs How long to wait at most, capped at 30 seconds.
+     * @return The current view, which is the caller's own if nothing changed before the timeout.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    synchronized MembershipView await(long knownEpoch, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Math.min(Math.max(timeoutMs, 0), MAX_WAIT_MS);
+        long remaining;
+        while (view.epoch() <= knownEpoch && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return view;
+    }
+
+    static boolean isServerName(String name) {
+        return name.contains("server") || name.contains("Server") || name.contains("centralAuthority");
+    }
+
+    private void publish() {
+        view = new MembershipView(incarnation, view.epoch() + 1, servers, proxies);
+        notifyAll();
+    }
+}
@@ -0,0 +1,45 @@
+package Operator;
+
+import Proxy.Proxy;
+import Server.BackendService;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Snapshot of the servers and proxies bound through the operator. The epoch goes up with every bind and unbind,
+ * so a cached view can be compared with the operator's and only replaced when something changed. An operator that
+ * restarts counts from 0 again under a new incarnation, so its views replace the ones cached before the restart.
+ * @param incarnation Id of the operator run that made the view, new every time the operator starts.
+ * @param epoch Number of changes made before this snapshot.
+ * @param servers The servers by registry name, the central authority included.
+ * @param proxies The proxies by registry name.
+ */
+public record MembershipView(String incarnation, long epoch, Map<String, BackendService> servers, Map<String, Proxy> proxies) implements Serializable {
+
+    public MembershipView {
+        servers = Map.copyOf(servers);
+        proxies = Map.copyOf(proxies);
+    }
+
+    /**
+     * @param knownIncarnation The incarnation of the view the caller has.
+     * @param knownEpoch The epoch of the view the caller has.
+     * @return true if this view replaces the caller's: it is newer, or the operator restarted since the caller's.
+     */
+    public boolean replaces(String knownIncarnation, long knownEpoch) {
+        return !incarnation.equals(knownIncarnation) || epoch > knownEpoch;
+    }
+
+    /**
+     * @return The central authority and the name it is bound under, or null if none is bound.
+     */
+    public Map.Entry<String, BackendService> centralAuthority() {
+        for (Map.Entry<String, BackendService> server : servers.entrySet()) {
+            if (server.getKey().contains("centralAuthority")) {
+                return server;
+            }
+        }
+        return null;
+    }
+}
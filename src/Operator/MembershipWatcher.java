@@ -0,0 +1,102 @@
+package Operator;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a copy of the operator's membership view up to date. A background thread long polls the operator, which only
+ * answers once the view changed, so reading the view costs no remote calls.
+ */
+public class MembershipWatcher {
+    private static final long POLL_TIMEOUT_MS = Long.getLong("dfs.membershipPollMs", 10_000L);
+    private static final long RETRY_DELAY_MS = 1_000L;
+
+    private final RegistryOperations operations;
+    private final List<Consumer<MembershipView>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile MembershipView view;
+
+    /**
+     * @param operations The operator to watch.
+     */
+    public MembershipWatcher(RegistryOperations operations) {
+        this.operations = operations;
+        Thread watcher = new Thread(this::watch, "membership-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @return The cached view. Only asks the operator if no view was received yet.
+     */
+    public MembershipView current() {
+        MembershipView current = view;
+        return current != null ? current : refresh();
+    }
+
+    /**
+     * Asks the operator for the view right away, for example after a server was unbound, so the change is seen
+     * without waiting for the long poll to return.
+     * @return The view.
+     */
+    public MembershipView refresh() {
+        refreshes.incrementAndGet();
+        try {
+            apply(operations.getMembership());
+        } catch (RemoteException e) {
+            System.err.println("Error reading the membership " + e.getMessage());
+            if (view == null) {
+                return new MembershipView("", 0, Map.of(), Map.of());
+            }
+        }
+        return view;
+    }
+
+    /**
+     * @param listener Run with the new view every time it changes.
+     */
+    public void onChange(Consumer<MembershipView> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return The number of times the view was asked for directly instead of waiting for the long poll.
+     */
+    public long refreshes() {
+        return refreshes.get();
+    }
+
+    private void watch() {
+        while (true) {
+            MembershipView current = view;
+            try {
+                apply(operations.awaitMembership(current == null ? -1 : current.epoch(), POLL_TIMEOUT_MS));
+            } catch (RemoteException e) {
+                System.err.println("Error watching the membership " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the cached view if the new one is newer, or comes from an operator that restarted and counts its
+     * epochs from 0 again. Listeners are run while the lock is held, so they see the views in order.
+     */
+    private synchronized void apply(MembershipView next) {
+        if (view != null && !next.replaces(view.incarnation(), view.epoch())) {
+            return;
+        }
+        view = next;
+        for (Consumer<MembershipView> listener : listeners) {
+            listener.accept(next);
+        }
+    }
+}
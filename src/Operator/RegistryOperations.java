@@ -5,6 +5,7 @@ import Server.BackendService;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Map;
 
@@ -21,4 +22,10 @@ public interface RegistryOperations extends Remote {
     Map.Entry<String, BackendService> getCentralAuthority() throws RemoteException;
 
     void setNewCentralAuthority(String newName, BackendService newLeader) throws RemoteException;
+
+    MembershipView getMembership() throws RemoteException;
+
+    MembershipView awaitMembership(long knownEpoch, long timeoutMs) throws RemoteException;
+
+    LeaderLease heartbeat(String nodeId, BackendService server, Instant latestWrite) throws RemoteException;
 }
@@ -8,9 +8,9 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.time.Instant;
 import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Map;
 /**
  * This Class abstracts the access to the registry in which the methods are called to
@@ -19,6 +19,8 @@ import java.util.Map;
 public class RegistryOperationsImpl extends UnicastRemoteObject implements RegistryOperations {
 
     private final Registry registry;
+    private final MembershipService membership = new MembershipService();
+    private final LeaderElection election;
 
     /**
      *
@@ -30,6 +32,7 @@ public class RegistryOperationsImpl extends UnicastRemoteObject implements Regis
     protected RegistryOperationsImpl(Registry registry) throws RemoteException {
         super();
         this.registry = registry;
+        this.election = new LeaderElection(this);
     }
 
     /**
@@ -37,12 +40,13 @@ public class RegistryOperationsImpl extends UnicastRemoteObject implements Regis
      * @param objectToBeBound Reference to the object that is being bound to the registry
      * @param name Name of the object in the RMI regisry
      * This method takes in an new object and object name and calls the registry method
-     * to bind it to the naming list and
+     * to bind it to the naming list and adds it to the membership view
      */
     @Override
     public void bindRemoteObject(Remote objectToBeBound, String name) {
         try {
             registry.rebind(name, objectToBeBound);
+            membership.bound(name, objectToBeBound);
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
@@ -52,11 +56,12 @@ public class RegistryOperationsImpl extends UnicastRemoteObject implements Regis
      *
      * @param name name of the object to be unbound
      * This method takes in the name of an object to released from the RMI registry
-     * and calls the registry to remove it from its naming list
+     * and calls the registry to remove it from its naming list and the membership view
      */
     @Override
     public synchronized void unBindRemoteObject(String name) {
         try {
+            membership.unbound(name);
             registry.unbind(name);
         } catch (NotBoundException ignored) {
         } catch (RemoteException e) {
@@ -67,23 +72,15 @@ public class RegistryOperationsImpl extends UnicastRemoteObject implements Regis
     /**
      *
      * @return returns an array list of all the server names and a reference to
-     * Their object in a map object
+     * Their object in a map object, read from the membership view
      */
     @Override
     public ArrayList<Map.Entry<String, BackendService>> getAllServers() {
         ArrayList<Map.Entry<String, BackendService>> servers = new ArrayList<>();
-        try {
-            for (String name : registry.list()) {
-                if (name.contains("server") || name.contains("Server")) {
-                    try {
-                        servers.add(new AbstractMap.SimpleEntry<>(name, (BackendService) registry.lookup(name)));
-                    } catch (RemoteException | NotBoundException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+        for (Map.Entry<String, BackendService> server : membership.current().servers().entrySet()) {
+            if (server.getKey().contains("server") || server.getKey().contains("Server")) {
+                servers.add(new AbstractMap.SimpleEntry<>(server));
             }
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
         }
         return servers;
     }
@@ -91,58 +88,69 @@ public class RegistryOperationsImpl extends UnicastRemoteObject implements Regis
     /**
      *
      * @return returns an array list of all the proxy names and a reference to
-     * Their object in a map object
+     * Their object in a map object, read from the membership view
      */
     @Override
     public ArrayList<Map.Entry<String, Proxy>> getAllProxies() {
         ArrayList<Map.Entry<String, Proxy>> proxies = new ArrayList<>();
-        try {
-            for (String name : registry.list()) {
-                if (name.contains("proxy") || name.contains("Proxy")) {
-                    proxies.add(new AbstractMap.SimpleEntry<>(name, (Proxy) registry.lookup(name)));
-                }
-            }
-        } catch (RemoteException | NotBoundException e) {
-            throw new RuntimeException(e);
+        for (Map.Entry<String, Proxy> proxy : membership.current().proxies().entrySet()) {
+            proxies.add(new AbstractMap.SimpleEntry<>(proxy));
         }
         return proxies;
     }
 
     /**
      *
-     * @return a map object of the central authority primary replica server name and object
-     * @throws RemoteException requirement of RMI
+     * @return the current membership view
+     * Servers, proxies and clients cache the view and keep it up to date with awaitMembership
      */
     @Override
-    public synchronized Map.Entry<String, BackendService> getCentralAuthority() throws RemoteException {
-        String currentName = "";
+    public MembershipView getMembership() {
+        return membership.current();
+    }
+
+    /**
+     *
+     * @param knownEpoch epoch of the view the caller has cached
+     * @param timeoutMs how long to wait for a change at most
+     * @return the current view as soon as its epoch is newer than the caller's, or after the timeout
+     * @throws RemoteException if the wait is interrupted
+     * This is a long poll, the caller's next call is made as soon as it returns, so changes are pushed
+     * to every cached view without anyone polling the registry
+     */
+    @Override
+    public MembershipView awaitMembership(long knownEpoch, long timeoutMs) throws RemoteException {
         try {
-            System.out.println(Arrays.toString(registry.list()));
-            for (String name : registry.list()) {
-                if (name.contains("centralAuthority")) {
-                    return new AbstractMap.SimpleEntry<>(name, (BackendService) registry.lookup(name));
-                }
-            }
-            for (String name : registry.list()) {
-                if (name.contains("server") || name.contains("Server")) {
-                    currentName = name;
-                    BackendService newLeader = (BackendService) registry.lookup(name);
-                    unBindRemoteObject(name);
-                    newLeader.becomeLeader();
-                    setNewCentralAuthority("centralAuthority" + newLeader.hashCode(), newLeader);
-                    return new AbstractMap.SimpleEntry<>("centralAuthority" + newLeader.hashCode(), newLeader);
-                }
-            }
-        } catch (RemoteException e) {
-            unBindRemoteObject(currentName);
-            Map.Entry<String, BackendService> newLeader = getCentralAuthority();
-            if (newLeader == null) {
-                return new AbstractMap.SimpleEntry<>("", null);
-            }
-        } catch (NotBoundException e) {
-            throw new RuntimeException(e);
+            return membership.await(knownEpoch, timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for a membership change", e);
         }
-        return new AbstractMap.SimpleEntry<>("", null);
+    }
+
+    /**
+     *
+     * @return a map object of the central authority primary replica server name and object
+     * The central authority is the server holding the leader lease. It is only ever changed by the
+     * election when the lease runs out, so calling this never promotes or unbinds a server
+     */
+    @Override
+    public Map.Entry<String, BackendService> getCentralAuthority() {
+        return election.leader();
+    }
+
+    /**
+     *
+     * @param nodeId node id of the server sending the heartbeat
+     * @param server reference to the server
+     * @param latestWrite time stamp of the latest write the server stored, null if it has none
+     * @return the current leader lease
+     * Servers call this every heartbeat interval once they have joined. The leader's heartbeats renew its lease,
+     * and a server that finds no leader is elected right away
+     */
+    @Override
+    public LeaderLease heartbeat(String nodeId, BackendService server, Instant latestWrite) {
+        return election.heartbeat(nodeId, server, latestWrite);
     }
 
     /**
@@ -153,16 +161,12 @@ public class RegistryOperationsImpl extends UnicastRemoteObject implements Regis
      */
     @Override
     public void setNewCentralAuthority(String newName, BackendService newLeader) {
-        try {
-            for (String name : registry.list()) {
-                if (name.contains("centralAuthority")) {
-                    unBindRemoteObject(name);
-                }
+        for (String name : membership.current().servers().keySet()) {
+            if (name.contains("centralAuthority")) {
+                unBindRemoteObject(name);
             }
-            bindRemoteObject(newLeader, newName);
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
         }
+        bindRemoteObject(newLeader, newName);
     }
 
 
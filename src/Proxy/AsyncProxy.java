@@ -0,0 +1,34 @@
+package Proxy;
+
+import Server.AsyncCalls;
+import Server.FileData;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous view of a proxy, for clients that keep many requests in flight at once. Every call returns right away
+ * with a future of the proxy's answer, the call itself runs on the executor of {@link AsyncCalls}. A call that fails
+ * completes the future with the RemoteException. LoadGenerator drives it with -Ddfs.load.inFlight, and
+ * -Ddfs.load.compare measures it against blocking calls at the same concurrency.
+ * The stubs still block, so every call in flight holds a thread of AsyncCalls. On Java 17 that is a platform thread,
+ * and this saves the caller its threads but not the process: the footprint only shrinks on virtual threads.
+ */
+public class AsyncProxy {
+    private final Proxy proxy;
+
+    /**
+     * @param proxy The proxy, usually an RMI stub.
+     */
+    public AsyncProxy(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    public CompletableFuture<FileData> forwardRead(String fileName) {
+        return AsyncCalls.supply(() -> proxy.forwardRead(fileName));
+    }
+
+    public CompletableFuture<FileData> forwardWrite(String fileName, byte[] data, Instant timeStamp) {
+        return AsyncCalls.supply(() -> proxy.forwardWrite(fileName, data, timeStamp));
+    }
+}
@@ -0,0 +1,223 @@
+package Proxy;
+
+import Server.AsyncCalls;
+import Server.BackendService;
+import Server.DownstreamLimits;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs the reads of a proxy with a latency budget.
+ * A read goes to the server picked by the read router. If it hasn't answered after the hedge delay, the same read is
+ * sent to a second server and the first answer wins, so one slow server doesn't slow down the read. The hedge delay
+ * is a percentile of the recent read latencies, -Ddfs.hedgePercentile (95 by default), so only the slowest reads are
+ * hedged. A read that fails is retried on another server, up to -Ddfs.readAttempts servers in all, as long as the
+ * deadline of the read, -Ddfs.readDeadlineMs, hasn't passed. Hedging is turned off with -Ddfs.hedgeReads=false.
+ * A server that fails is only skipped for that read. It is not unbound, the operator unbinds servers once their
+ * heartbeats stop.
+ */
+class HedgedReader {
+    private static final boolean HEDGING = Boolean.parseBoolean(System.getProperty("dfs.hedgeReads", "true"));
+    private static final long DEADLINE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.readDeadlineMs", 5_000L));
+    private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("dfs.readAttempts", 3));
+    private static final int HEDGE_PERCENTILE = Math.min(99, Math.max(50, Integer.getInteger("dfs.hedgePercentile", 95)));
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int WINDOW = 1024;
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private final ReadRouter router;
+    private final DownstreamLimits limits;
+    private final long[] latencies = new long[WINDOW];
+    private int recorded;
+    private volatile long hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.hedgeDelayMs", 50L));
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong deadlinesExceeded = new AtomicLong();
+
+    /**
+     * @param router Picks the servers and measures their load.
+     * @param limits Limits the reads in flight to each server.
+     */
+    HedgedReader(ReadRouter router, DownstreamLimits limits) {
+        this.router = router;
+        this.limits = limits;
+    }
+
+    /**
+     * @param fileName The file that is read.
+     * @param servers The servers that can serve the read.
+     * @param call The read.
+     * @param discard Run on the answers that came in after another server won, for example to close a read session.
+     * @param noServers The result if no server answered before the deadline.
+     * @return The first answer.
+     * @throws RemoteException if the proxy was interrupted while waiting.
+     */
+    <T> T read(String fileName, List<BackendService> servers, ProxyImpl.ServerCall<T> call, Consumer<T> discard, T noServers) throws RemoteException {
+        List<BackendService> remaining = new ArrayList<>(router.available(servers));
+        if (remaining.isEmpty()) {
+            return noServers;
+        }
+        long start = System.nanoTime();
+        long deadline = start + DEADLINE_NANOS;
+        AtomicBoolean settled = new AtomicBoolean();
+        BlockingQueue<Attempt<T>> answers = new LinkedBlockingQueue<>();
+        launch(fileName, remaining, call, discard, settled, answers, false);
+        int launched = 1;
+        int failed = 0;
+        boolean hedged = !HEDGING;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long wait = deadline - now;
+                if (!hedged) {
+                    wait = Math.min(wait, start + hedgeDelayNanos - now);
+                }
+                Attempt<T> answer = wait > 0 ? answers.poll(wait, TimeUnit.NANOSECONDS) : answers.poll();
+                if (answer == null) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        break;
+                    }
+                    // the first server is slower than most reads, ask another one too
+                    hedged = true;
+                    if (launched < MAX_ATTEMPTS && !remaining.isEmpty()) {
+                        hedges.incrementAndGet();
+                        launch(fileName, remaining, call, discard, settled, answers, true);
+                        launched++;
+                    }
+                    continue;
+                }
+                if (answer.error == null) {
+                    if (answer.hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    record(System.nanoTime() - start);
+                    return answer.result;
+                }
+                failed++;
+                System.out.println("Read of " + fileName + " failed on a server " + answer.error.getMessage());
+                if (launched < MAX_ATTEMPTS && !remaining.isEmpty()) {
+                    retries.incrementAndGet();
+                    launch(fileName, remaining, call, discard, settled, answers, false);
+                    launched++;
+                } else if (failed == launched) {
+                    System.out.println("Couldn't find any servers to service your request.");
+                    return noServers;
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!settled.compareAndSet(false, true)) {
+                // nobody is going to use the answer that won
+                discard.accept(awaitWinner(answers));
+            }
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for a read", e);
+        }
+        if (!settled.compareAndSet(false, true)) {
+            // a server answered just as the deadline passed
+            return awaitWinner(answers);
+        }
+        deadlinesExceeded.incrementAndGet();
+        System.out.println("Read of " + fileName + " missed its deadline");
+        return noServers;
+    }
+
+    /**
+     * Sends the read to the next server picked by the router, without waiting for it. Only the first successful
+     * answer is handed back, the others are discarded. RMI calls can't be interrupted, so hedges that lost finish in
+     * the background.
+     */
+    private <T> void launch(String fileName, List<BackendService> remaining, ProxyImpl.ServerCall<T> call, Consumer<T> discard,
+                            AtomicBoolean settled, BlockingQueue<Attempt<T>> answers, boolean hedge) {
+        BackendService server = router.choose(fileName, remaining);
+        remaining.remove(server);
+        AsyncCalls.supply(() -> {
+            DownstreamLimits.Permit permit = limits.acquire(server);
+            try {
+                return router.call(server, call);
+            } finally {
+                permit.release();
+            }
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                router.failed(server);
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                answers.add(new Attempt<>(null, cause instanceof Exception e ? e : new RuntimeException(cause), hedge));
+            } else if (settled.compareAndSet(false, true)) {
+                answers.add(new Attempt<>(result, null, hedge));
+            } else if (result != null) {
+                discard.accept(result);
+            }
+        });
+    }
+
+    /**
+     * Waits for the answer of the server that settled the read. The server settles the read before it adds its
+     * answer, so the answer can still be on its way when the reader sees the read settled. Interrupts are kept for
+     * later, the wait is at most as long as adding to the queue takes.
+     */
+    private static <T> T awaitWinner(BlockingQueue<Attempt<T>> answers) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Attempt<T> answer = answers.take();
+                    if (answer.error == null) {
+                        return answer.result;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Keeps the latency of the read in a window of recent reads, and moves the hedge delay to the percentile of the
+     * window every few reads.
+     */
+    private synchronized void record(long nanos) {
+        latencies[recorded % WINDOW] = nanos;
+        recorded++;
+        if (recorded % RECOMPUTE_EVERY == 0) {
+            long[] window = Arrays.copyOf(latencies, Math.min(recorded, WINDOW));
+            Arrays.sort(window);
+            hedgeDelayNanos = Math.max(MIN_HEDGE_DELAY_NANOS, window[(window.length - 1) * HEDGE_PERCENTILE / 100]);
+        }
+    }
+
+    /**
+     * @return How many reads were hedged, retried or missed their deadline, and the current hedge delay.
+     */
+    Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("reads.hedged", hedges.get());
+        stats.put("reads.hedgeWins", hedgeWins.get());
+        stats.put("reads.retries", retries.get());
+        stats.put("reads.deadlineExceeded", deadlinesExceeded.get());
+        stats.put("reads.hedgeDelayMicros", TimeUnit.NANOSECONDS.toMicros(hedgeDelayNanos));
+        return stats;
+    }
+
+    /**
+     * The answer of one server, either its result or the error it failed with.
+     */
+    private record Attempt<T>(T result, Exception error, boolean hedge) {
+    }
+}
@@ -1,10 +1,13 @@
 package Proxy;
 
 import Server.FileData;
+import Server.TransferSession;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 
 public interface Proxy extends Remote {
 
@@ -12,4 +15,22 @@ public interface Proxy extends Remote {
 
     FileData forwardWrite(String client, byte[] data, Instant timeStamp) throws RemoteException;
 
+    List<FileData> forwardReadMany(List<String> fileNames, List<Instant> knownVersions) throws RemoteException;
+
+    List<FileData> forwardWriteMany(List<FileData> files) throws RemoteException;
+
+    TransferSession forwardOpenRead(String fileName, Instant knownVersion) throws RemoteException;
+
+    FileData forwardReadChunk(String sessionId, long offset, int length) throws RemoteException;
+
+    TransferSession forwardOpenWrite(String fileName, long fileSize, Instant timeStamp) throws RemoteException;
+
+    FileData forwardWriteChunk(String sessionId, long offset, FileData chunk) throws RemoteException;
+
+    FileData forwardCommitWrite(String sessionId) throws RemoteException;
+
+    void forwardCloseSession(String sessionId) throws RemoteException;
+
+    Map<String, Long> getStats() throws RemoteException;
+
 }
@@ -1,14 +1,31 @@
 package Proxy;
 
+import Operator.LeaderLease;
+import Operator.MembershipView;
+import Operator.MembershipWatcher;
 import Operator.RegistryOperations;
+import Server.AsyncCalls;
+import Server.AsyncLog;
+import Server.Compression;
 import Server.FileData;
 import Server.BackendService;
+import Server.DownstreamLimits;
+import Server.HashRing;
+import Server.Metrics;
+import Server.ReadCache;
+import Server.ReplicaMembership;
+import Server.TransferSession;
 
 import java.rmi.registry.Registry;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * This class contains the implementation of our proxy
@@ -16,9 +33,22 @@ import java.util.*;
  * and responses to their respective destination
  */
 public class ProxyImpl extends UnicastRemoteObject implements Proxy {
+    private static final int ROUTE_ATTEMPTS = 3;
+    private static final String READ_ROUTING = System.getProperty("dfs.readRouting", "p2c");
+    private static final long CACHE_FRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.proxyCacheFreshMs", 0L));
+
     private final RegistryOperations operations;
     private final Registry registry;
-    private Map.Entry<String, BackendService> server;
+    private volatile Map.Entry<String, BackendService> server;
+    private final Map<String, BackendService> sessionRoutes = new ConcurrentHashMap<>();
+    private final ReadCache readCache = new ReadCache("proxyCache", Long.getLong("dfs.proxyCacheBytes", 64L * 1024 * 1024));
+    private final MembershipWatcher watcher;
+    private final ReadRouter router = ReadRouter.create(READ_ROUTING);
+    private final DownstreamLimits limits = new DownstreamLimits();
+    private final HedgedReader reader = new HedgedReader(router, limits);
+    private volatile ServerList serverList = new ServerList("", -1, List.of(), Map.of());
+    private final ReplicaMembership membership;
+    private final AtomicLong notLeaderReplies = new AtomicLong();
 
 
     /**
@@ -33,6 +63,9 @@ public class ProxyImpl extends UnicastRemoteObject implements Proxy {
         this.server = server;
         this.operations = operations;
         this.registry = registry;
+        this.watcher = new MembershipWatcher(operations);
+        this.membership = HashRing.KEY_LEADERS ? new ReplicaMembership(watcher, this, null) : null;
+        Metrics.register("Proxy", Integer.toString(hashCode()), this::getStats);
     }
 
     /**
@@ -44,31 +77,95 @@ public class ProxyImpl extends UnicastRemoteObject implements Proxy {
      */
     @Override
     public FileData forwardRead(String fileName) throws RemoteException {
-        System.out.println("Entered proxy read method");
-        Map.Entry<String, BackendService> readServer = getRandomServer();
+        long start = System.nanoTime();
         try {
-            if (readServer == null) {
-                for (String name : registry.list()) {
-                    if (name.contains("centralAuthority")) {
-                        server = operations.getCentralAuthority();
-                        return this.server.getValue().read(fileName);
-                    }
+            AsyncLog.info("Entered proxy read method");
+            FileData cached = readFromCache(fileName);
+            if (cached != null) {
+                return cached;
+            }
+            FileData readData = readFromOwner(fileName, readServer -> readServer.read(fileName), lost -> {},
+                    new FileData(null, null, FileData.StatusCodeEnum.NO_SERVERS));
+            if (readData != null && readData.status() == FileData.StatusCodeEnum.SUCCESS) {
+                addToCache(fileName, readData.fileData(), readData.version(), readData.encoded());
+            }
+            return readData;
+        } finally {
+            Metrics.recordSince("rpc.forwardRead", start);
+        }
+    }
+
+    /**
+     * @param fileName     name of file it wants to read
+     * @param knownVersion version of the file the client already has, null if it has none
+     * @return returns NOT_MODIFIED if the client's version is current, otherwise the read session,
+     *                     or the whole file if it fits in one chunk
+     * @throws RemoteException required
+     *                         This method checks the client's version with the central authority, then opens a
+     *                         chunked read on a random server and remembers which server holds the session so the
+     *                         following chunk requests go to the same server
+     */
+    @Override
+    public TransferSession forwardOpenRead(String fileName, Instant knownVersion) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered proxy open read method");
+            FileData latest = readFromCache(fileName);
+            if (latest == null && knownVersion != null) {
+                latest = callCoordinator(fileName, leader -> leader.readIfModified(fileName, knownVersion), FileData::status, null);
+            }
+            if (latest != null && latest.version() != null && latest.version().equals(knownVersion)) {
+                return new TransferSession(null, fileName, 0, 0, null, latest.version(), FileData.StatusCodeEnum.NOT_MODIFIED);
+            }
+            if (latest != null && latest.status() == FileData.StatusCodeEnum.SUCCESS && latest.fileData() != null) {
+                addToCache(fileName, latest.fileData(), latest.version(), latest.encoded());
+                int size = latest.fileData().length;
+                return new TransferSession(null, fileName, size, size, latest.fileData(), latest.version(), FileData.StatusCodeEnum.SUCCESS,
+                        null, 0, latest.encoded());
+            }
+            TransferSession readSession = readFromOwner(fileName, readServer -> {
+                TransferSession session = readServer.openRead(fileName);
+                if (session.sessionId() != null) {
+                    sessionRoutes.put(session.sessionId(), readServer);
                 }
-                return new FileData(null, null, FileData.StatusCodeEnum.NO_SERVERS);
-            }
-            return readServer.getValue().read(fileName);
-        } catch (Exception e) {
-            if (readServer != null) {
-                System.out.println("Unbinding " + readServer.getKey());
-                this.operations.unBindRemoteObject(readServer.getKey());
-            } else if (server != null) {
-                System.out.println("Unbinding " + server.getKey());
-                this.operations.unBindRemoteObject(server.getKey());
-            } else {
-                System.out.println("Couldn't find any servers to service your request.");
-                return new FileData(null, null, FileData.StatusCodeEnum.NO_SERVERS);
+                return session;
+            }, lost -> {
+                if (lost.sessionId() != null) {
+                    forwardCloseSession(lost.sessionId());
+                }
+            }, new TransferSession(FileData.StatusCodeEnum.NO_SERVERS));
+            if (readSession != null && readSession.status() == FileData.StatusCodeEnum.SUCCESS) {
+                addToCache(fileName, readSession.data(), readSession.version(), readSession.encoded());
             }
-            return forwardRead(fileName);
+            return readSession;
+        } finally {
+            Metrics.recordSince("rpc.forwardOpenRead", start);
+        }
+    }
+
+    /**
+     * @param sessionId id of the read session
+     * @param offset    position in the file to read from
+     * @param length    number of bytes wanted
+     * @return returns the chunk, or SESSION_EXPIRED if the server holding the session is gone
+     *                         This method forwards a chunk request to the server that opened the session
+     */
+    @Override
+    public FileData forwardReadChunk(String sessionId, long offset, int length) {
+        long start = System.nanoTime();
+        try {
+            BackendService sessionServer = sessionRoutes.get(sessionId);
+            if (sessionServer == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+            try {
+                return sessionServer.readChunk(sessionId, offset, length);
+            } catch (RemoteException e) {
+                sessionRoutes.remove(sessionId);
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+        } finally {
+            Metrics.recordSince("rpc.forwardReadChunk", start);
         }
     }
 
@@ -77,38 +174,447 @@ public class ProxyImpl extends UnicastRemoteObject implements Proxy {
      * @param data      file byte array
      * @param timeStamp timestamp of when the request was made
      * @throws RemoteException required
-     *                         This method takes a file and sends it to the central authority for it to
-     *                         write to the storage network
+     *                         This method takes a file and sends it to the central authority, or the leader of the
+     *                         file when leadership is split by key, for it to write to the storage network
      */
     @Override
     public FileData forwardWrite(String fileName, byte[] data, Instant timeStamp) throws RemoteException {
-        System.out.println("Entered proxy write method");
+        long start = System.nanoTime();
         try {
-            return server.getValue().write(fileName, data, timeStamp);
-        } catch (Exception e) {
-            operations.unBindRemoteObject(server.getKey());
-            Map.Entry<String, BackendService> newLeader = operations.getCentralAuthority();
-            if (newLeader.getValue() == null) {
+            AsyncLog.info("Entered proxy write method");
+            FileData writeResult = callCoordinator(fileName, leader -> leader.write(fileName, data, timeStamp), FileData::status,
+                    new FileData(null, null, FileData.StatusCodeEnum.NO_SERVERS));
+            if (writeResult.status() == FileData.StatusCodeEnum.SUCCESS || writeResult.status() == FileData.StatusCodeEnum.UNDER_REPLICATED) {
+                addToCache(fileName, data, timeStamp, null);
+            }
+            return writeResult;
+        } finally {
+            Metrics.recordSince("rpc.forwardWrite", start);
+        }
+    }
+
+    /**
+     * @param fileNames     names of the files to read
+     * @param knownVersions version the client already has of each file, null where it has none, may be null itself
+     * @return returns the files in the same order, files bigger than one chunk without their data, and files the
+     *                         client already has as NOT_MODIFIED
+     * @throws RemoteException required
+     *                         This method reads many files with one call per server instead of one per file. The
+     *                         files are sent to one server picked by the read routing policy, or in partitioned
+     *                         mode split up by their owners, with the same hedging and retries as a single read
+     */
+    @Override
+    public List<FileData> forwardReadMany(List<String> fileNames, List<Instant> knownVersions) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered proxy read many method with " + fileNames.size() + " files");
+            FileData[] results = new FileData[fileNames.size()];
+            Map<List<BackendService>, List<Integer>> groups = new HashMap<>();
+            for (int i = 0; i < fileNames.size(); i++) {
+                List<BackendService> servers = HashRing.PARTITIONED ? membership.ring().ownerServers(fileNames.get(i)) : servers().servers();
+                groups.computeIfAbsent(servers, k -> new ArrayList<>()).add(i);
+            }
+            for (Map.Entry<List<BackendService>, List<Integer>> group : groups.entrySet()) {
+                List<String> names = new ArrayList<>(group.getValue().size());
+                List<Instant> versions = knownVersions == null ? null : new ArrayList<>(group.getValue().size());
+                for (int i : group.getValue()) {
+                    names.add(fileNames.get(i));
+                    if (versions != null) {
+                        versions.add(knownVersions.get(i));
+                    }
+                }
+                List<FileData> answers = reader.read(names.get(0), group.getKey(), readServer -> readServer.readMany(names, versions), lost -> {}, null);
+                for (int j = 0; j < names.size(); j++) {
+                    FileData answer = answers == null ? new FileData(names.get(j), null, FileData.StatusCodeEnum.NO_SERVERS) : answers.get(j);
+                    if (answer.status() == FileData.StatusCodeEnum.SUCCESS) {
+                        addToCache(names.get(j), answer.fileData(), answer.version(), answer.encoded());
+                    }
+                    results[group.getValue().get(j)] = answer;
+                }
+            }
+            return Arrays.asList(results);
+        } finally {
+            Metrics.recordSince("rpc.forwardReadMany", start);
+        }
+    }
+
+    /**
+     * @param files the files to write, each with its name, data and the time stamp it was written at as its version
+     * @return returns the status of every file in the same order, same as forwardWrite
+     * @throws RemoteException required
+     *                         This method writes many files with one call to the central authority, or with
+     *                         per-key leaders one call to the leader of each group of files. Files a server
+     *                         answered NOT_LEADER for are grouped again on the rebuilt ring and sent again
+     */
+    @Override
+    public List<FileData> forwardWriteMany(List<FileData> files) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered proxy write many method with " + files.size() + " files");
+            FileData[] results = new FileData[files.size()];
+            List<Integer> pending = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                pending.add(i);
+            }
+            for (int attempt = 0; attempt < ROUTE_ATTEMPTS && !pending.isEmpty(); attempt++) {
+                Map<BackendService, List<Integer>> groups = new HashMap<>();
+                for (int i : pending) {
+                    List<BackendService> owners = membership == null ? List.of() : membership.ring().ownerServers(files.get(i).fileName());
+                    if (membership != null && owners.isEmpty()) {
+                        results[i] = new FileData(files.get(i).fileName(), null, FileData.StatusCodeEnum.NO_SERVERS);
+                    } else {
+                        groups.computeIfAbsent(owners.isEmpty() ? null : owners.get(0), k -> new ArrayList<>()).add(i);
+                    }
+                }
+                List<Integer> notLed = new ArrayList<>();
+                for (Map.Entry<BackendService, List<Integer>> group : groups.entrySet()) {
+                    List<FileData> batch = new ArrayList<>(group.getValue().size());
+                    group.getValue().forEach(i -> batch.add(files.get(i)));
+                    List<FileData> answers = group.getKey() == null
+                            ? callLeader(leader -> leader.writeMany(batch), ProxyImpl::firstStatus, null)
+                            : callOwners(membership.ring().ownerServers(batch.get(0).fileName()), owner -> owner.writeMany(batch), null);
+                    for (int j = 0; j < batch.size(); j++) {
+                        int i = group.getValue().get(j);
+                        FileData answer = answers == null ? new FileData(batch.get(j).fileName(), null, FileData.StatusCodeEnum.NO_SERVERS) : answers.get(j);
+                        results[i] = answer;
+                        if (answer.status() == FileData.StatusCodeEnum.SUCCESS || answer.status() == FileData.StatusCodeEnum.UNDER_REPLICATED) {
+                            addToCache(batch.get(j).fileName(), batch.get(j).fileData(), batch.get(j).version(), batch.get(j).encoded());
+                        } else if (answer.status() == FileData.StatusCodeEnum.NOT_LEADER && membership != null) {
+                            notLed.add(i);
+                        }
+                    }
+                }
+                if (!notLed.isEmpty()) {
+                    notLeaderReplies.incrementAndGet();
+                    membership.refresh();
+                }
+                pending = notLed;
+            }
+            return Arrays.asList(results);
+        } finally {
+            Metrics.recordSince("rpc.forwardWriteMany", start);
+        }
+    }
+
+    private static FileData.StatusCodeEnum firstStatus(List<FileData> answers) {
+        return answers.isEmpty() ? FileData.StatusCodeEnum.SUCCESS : answers.get(0).status();
+    }
+
+    /**
+     * @param fileName  name of file
+     * @param fileSize  size of the file, in bytes
+     * @param timeStamp timestamp of when the request was made
+     * @return returns the write session to send the chunks with
+     * @throws RemoteException required
+     *                         This method opens a chunked write on the central authority, or the leader of the
+     *                         file, and remembers the session so the chunks and the commit go to the same server
+     */
+    @Override
+    public TransferSession forwardOpenWrite(String fileName, long fileSize, Instant timeStamp) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered proxy open write method");
+            return callCoordinator(fileName, leader -> {
+                TransferSession session = leader.openWrite(fileName, fileSize, timeStamp);
+                if (session.sessionId() != null) {
+                    sessionRoutes.put(session.sessionId(), leader);
+                }
+                return session;
+            }, TransferSession::status, new TransferSession(FileData.StatusCodeEnum.NO_SERVERS));
+        } finally {
+            Metrics.recordSince("rpc.forwardOpenWrite", start);
+        }
+    }
+
+    /**
+     * @param sessionId id of the write session
+     * @param offset    position in the file the chunk starts at
+     * @param chunk     bytes of the chunk, passed on in the form they arrived in
+     * @return returns the status of the chunk write
+     *                         This method forwards a chunk to the server that opened the session
+     */
+    @Override
+    public FileData forwardWriteChunk(String sessionId, long offset, FileData chunk) {
+        long start = System.nanoTime();
+        try {
+            BackendService sessionServer = sessionRoutes.get(sessionId);
+            if (sessionServer == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+            try {
+                return sessionServer.writeChunk(sessionId, offset, chunk);
+            } catch (RemoteException e) {
+                sessionRoutes.remove(sessionId);
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+        } finally {
+            Metrics.recordSince("rpc.forwardWriteChunk", start);
+        }
+    }
+
+    /**
+     * @param sessionId id of the write session
+     * @return returns the status of the write, same as forwardWrite
+     *                         This method commits an upload on the server that opened the session
+     */
+    @Override
+    public FileData forwardCommitWrite(String sessionId) {
+        long start = System.nanoTime();
+        try {
+            BackendService sessionServer = sessionRoutes.remove(sessionId);
+            if (sessionServer == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+            try {
+                FileData commitResult = sessionServer.commitWrite(sessionId);
+                if (commitResult.fileName() != null) {
+                    readCache.invalidate(commitResult.fileName());
+                }
+                return commitResult;
+            } catch (RemoteException e) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+        } finally {
+            Metrics.recordSince("rpc.forwardCommitWrite", start);
+        }
+    }
+
+    /**
+     * @param sessionId id of the session
+     *                  This method closes a read session or aborts a write session on the server that opened it
+     */
+    @Override
+    public void forwardCloseSession(String sessionId) {
+        BackendService sessionServer = sessionRoutes.remove(sessionId);
+        if (sessionServer != null) {
+            try {
+                sessionServer.closeSession(sessionId);
+            } catch (RemoteException e) {
+                System.out.println("Could not close session " + sessionId);
+            }
+        }
+    }
+
+    /**
+     * @return returns the proxy's metrics, such as its cache hits and misses
+     *                         This method is used to size the proxy cache
+     */
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = readCache.getStats();
+        stats.put("membership.epoch", watcher.current().epoch());
+        stats.put("membership.refreshes", watcher.refreshes());
+        stats.putAll(router.getStats(servers().names()));
+        stats.putAll(reader.getStats());
+        stats.putAll(AsyncCalls.getStats());
+        stats.putAll(Compression.getStats());
+        stats.putAll(Metrics.getStats());
+        stats.put("log.dropped", AsyncLog.dropped());
+        stats.putAll(limits.getStats(servers().names()));
+        if (membership != null) {
+            stats.put("ring.nodes", (long) membership.ring().size());
+            stats.put("routing.notLeader", notLeaderReplies.get());
+        }
+        return stats;
+    }
+
+    /**
+     * @param fileName name of the file
+     * @return returns the cached file if the central authority confirms it is still the latest version, null otherwise
+     * @throws RemoteException required
+     *                         This method checks the cached copy of a file with a conditional read on the central
+     *                         authority, which only sends the file back if it has changed. The check is still a
+     *                         round trip to the central authority, so by default the cache saves bandwidth but not
+     *                         latency. With -Ddfs.proxyCacheFreshMs a copy checked within that many milliseconds is
+     *                         returned without asking, so reads may see a version that is up to that old
+     */
+    private FileData readFromCache(String fileName) throws RemoteException {
+        ReadCache.Entry cached = readCache.getEncoded(fileName);
+        if (cached == null) {
+            return null;
+        }
+        if (CACHE_FRESH_NANOS > 0 && System.nanoTime() - cached.cachedAtNanos() < CACHE_FRESH_NANOS) {
+            return new FileData(fileName, cached.data(), FileData.StatusCodeEnum.SUCCESS, cached.version(), cached.encoded());
+        }
+        FileData latest = callCoordinator(fileName, leader -> leader.readIfModified(fileName, cached.version()), FileData::status, null);
+        if (latest != null && latest.status() == FileData.StatusCodeEnum.NOT_MODIFIED) {
+            // put again so the copy counts as checked from now on
+            readCache.put(fileName, cached.data(), cached.version(), cached.encoded());
+            return new FileData(fileName, cached.data(), FileData.StatusCodeEnum.SUCCESS, cached.version(), cached.encoded());
+        }
+        if (latest != null && latest.status() == FileData.StatusCodeEnum.SUCCESS && latest.fileData() != null) {
+            addToCache(fileName, latest.fileData(), latest.version(), latest.encoded());
+            return latest;
+        }
+        readCache.invalidate(fileName);
+        return null;
+    }
+
+    /**
+     * @param fileName name of the file
+     * @param data     contents of the file, may be null if the file was too big to be returned whole
+     * @param version  version of the file, may be null if the server doesn't know it
+     * @param encoded  compressed form the file arrived in, may be null
+     *                 This method caches a file if it can later be validated by its version
+     */
+    private void addToCache(String fileName, byte[] data, Instant version, Compression.Encoded encoded) {
+        if (data != null && version != null) {
+            readCache.put(fileName, data, version, encoded);
+        } else {
+            readCache.invalidate(fileName);
+        }
+    }
+
+    /**
+     * @param call      the write to perform on the central authority
+     * @param status    the status of a result, to tell whether the server still held the leader lease
+     * @param noServers the result to return if there are no servers left
+     * @return returns the result of the call
+     * @throws RemoteException required
+     *                         This method runs a write on the central authority. If it fails or answers NOT_LEADER
+     *                         the proxy asks the operator for the current leader and tries again. A failed leader is
+     *                         replaced by the operator once its lease runs out, so the proxy gives up after two leases
+     */
+    private <T> T callLeader(ServerCall<T> call, Function<T, FileData.StatusCodeEnum> status, T noServers) throws RemoteException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * LeaderLease.LEASE_MS);
+        T result = noServers;
+        while (true) {
+            Map.Entry<String, BackendService> leader = server;
+            if (leader != null && leader.getValue() != null) {
+                try {
+                    result = call.call(leader.getValue());
+                    if (result == null || status.apply(result) != FileData.StatusCodeEnum.NOT_LEADER) {
+                        return result;
+                    }
+                } catch (RemoteException e) {
+                    System.out.println("Leader " + leader.getKey() + " did not answer");
+                }
+            }
+            if (System.nanoTime() - deadline > 0) {
                 System.out.println("There are no more servers left");
-            } else {
-                this.server = newLeader;
+                return result;
+            }
+            Map.Entry<String, BackendService> newLeader = operations.getCentralAuthority();
+            if (newLeader.getValue() != null && (leader == null || !newLeader.getKey().equals(leader.getKey()))) {
                 System.out.println("Elected new Leader");
-                return forwardWrite(fileName, data, timeStamp);
+            } else {
+                // the operator hasn't replaced the leader yet, wait for the next heartbeat
+                sleep(LeaderLease.HEARTBEAT_MS);
+            }
+            this.server = newLeader;
+        }
+    }
+
+    /**
+     * @param fileName  name of the file
+     * @param call      the read to perform on the server
+     * @param discard   run on the results of servers that answered after another one, to clean them up
+     * @param noServers the result to return if no server answered in time
+     * @return returns the result of the call
+     * @throws RemoteException required
+     *                         This method runs a read on any server, or in partitioned mode on an owner of the
+     *                         file, picked by the read routing policy. Slow reads are hedged on a second server and
+     *                         failed reads retried on another one, within the read's deadline. Servers that fail
+     *                         are not unbound, the operator unbinds them once their heartbeats stop
+     */
+    private <T> T readFromOwner(String fileName, ServerCall<T> call, Consumer<T> discard, T noServers) throws RemoteException {
+        List<BackendService> servers = HashRing.PARTITIONED ? membership.ring().ownerServers(fileName) : servers().servers();
+        return reader.read(fileName, servers, call, discard, noServers);
+    }
+
+    /**
+     * @param fileName  name of the file
+     * @param call      the call to perform on the server
+     * @param status    the status of a result, to tell whether the server led the file
+     * @param noServers the result to return if there are no servers left
+     * @return returns the result of the call
+     * @throws RemoteException required
+     *                         This method runs a call on the central authority, or with per-key leaders on the
+     *                         first owner of the file, which coordinates its writes. The owners come from the ring
+     *                         cached by the proxy, so no lookup is made per call. A server that answers NOT_LEADER
+     *                         means the cached ring is out of date, so it is rebuilt and the call tried again
+     */
+    private <T> T callCoordinator(String fileName, ServerCall<T> call, Function<T, FileData.StatusCodeEnum> status, T noServers) throws RemoteException {
+        if (membership == null) {
+            return callLeader(call, status, noServers);
+        }
+        T result = noServers;
+        for (int attempt = 0; attempt < ROUTE_ATTEMPTS; attempt++) {
+            result = callOwners(membership.ring().ownerServers(fileName), call, noServers);
+            if (result == null || result == noServers || status.apply(result) != FileData.StatusCodeEnum.NOT_LEADER) {
+                return result;
+            }
+            notLeaderReplies.incrementAndGet();
+            membership.refresh();
+        }
+        return result;
+    }
+
+    /**
+     * @param owners    the servers to try, in order
+     * @param call      the call to perform on the server
+     * @param noServers the result to return if every server failed
+     * @return returns the result of the first server that answers
+     * @throws RemoteException required
+     *                         This method tries the next owner when one fails, and reads the membership view
+     *                         again. The failed server is not unbound, the operator unbinds it once its
+     *                         heartbeats stop
+     */
+    private <T> T callOwners(List<BackendService> owners, ServerCall<T> call, T noServers) throws RemoteException {
+        for (BackendService owner : owners) {
+            try {
+                return call.call(owner);
+            } catch (RemoteException e) {
+                System.out.println("Server " + membership.registryName(owner) + " did not answer");
+                membership.invalidate();
             }
         }
-        return new FileData(null, null, FileData.StatusCodeEnum.NO_SERVERS);
+        System.out.println("Couldn't find any servers to service your request.");
+        return noServers;
     }
 
-    private Map.Entry<String, BackendService> getRandomServer() {
-        ArrayList<Map.Entry<String, BackendService>> servers;
+    private static void sleep(long millis) throws RemoteException {
         try {
-            servers = operations.getAllServers();
-            if (servers.isEmpty()) return null;
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
-        }
-        servers.add(server);
-        Collections.shuffle(servers);
-        return servers.get(0);
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for a new leader", e);
+        }
+    }
+
+    /**
+     * @return returns the servers of the cached membership view, the central authority included. The list is only
+     *                         rebuilt when the view changes, not on every read
+     */
+    private ServerList servers() {
+        MembershipView view = watcher.current();
+        ServerList servers = serverList;
+        if (view.replaces(servers.incarnation(), servers.epoch())) {
+            Map<BackendService, String> names = new HashMap<>();
+            view.servers().forEach((name, server) -> names.put(server, name));
+            servers = new ServerList(view.incarnation(), view.epoch(), List.copyOf(names.keySet()), Map.copyOf(names));
+            router.retain(names.keySet());
+            limits.retain(names.keySet());
+            serverList = servers;
+        }
+        return servers;
+    }
+
+    /**
+     * The servers of one membership view.
+     * @param incarnation incarnation of the operator that made the view
+     * @param epoch   epoch of the view
+     * @param servers the servers, in no particular order
+     * @param names   the registry name of every server
+     */
+    private record ServerList(String incarnation, long epoch, List<BackendService> servers, Map<BackendService, String> names) {
+    }
+
+    /**
+     * A call made on a backend server by the proxy.
+     */
+    @FunctionalInterface
+    interface ServerCall<T> {
+        T call(BackendService server) throws RemoteException;
     }
 }
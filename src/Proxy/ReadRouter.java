@@ -0,0 +1,255 @@
+package Proxy;
+
+import Server.BackendService;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the server a read is sent to, out of the proxy's cached list of servers.
+ * The policy is chosen with -Ddfs.readRouting:
+ * random picks any server, p2c (the default) picks the less busy of two random servers, ewma does the same but
+ * weighs the servers by their recent latency too, and affinity sends each file to the same server so its read cache
+ * stays warm, unless that server is much busier than the next one for the file.
+ * The router also keeps the load of every server, which is measured by running the reads through it.
+ * A server whose read failed is left out for -Ddfs.failureCooldownMs, until the operator unbinds it or it recovers.
+ */
+abstract class ReadRouter {
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final long COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.failureCooldownMs", 1_000L));
+
+    private final Map<BackendService, Load> loads = new ConcurrentHashMap<>();
+    // when the last cooldown ends, so reads don't look at every server while none is cooling down
+    private volatile long cooldownsEnd = System.nanoTime();
+
+    /**
+     * @param policy The name of the policy, random, p2c, ewma or affinity.
+     * @return The router for the policy.
+     */
+    static ReadRouter create(String policy) {
+        return switch (policy) {
+            case "random" -> new RandomRouter();
+            case "ewma" -> new EwmaRouter();
+            case "affinity" -> new AffinityRouter();
+            case "p2c" -> new PowerOfTwoRouter();
+            default -> throw new IllegalArgumentException("Unknown read routing policy " + policy);
+        };
+    }
+
+    /**
+     * @param fileName The file that is read.
+     * @param servers The servers that can serve the read, never empty.
+     * @return The server to send the read to.
+     */
+    abstract BackendService choose(String fileName, List<BackendService> servers);
+
+    /**
+     * Runs a read on a server and records how long it took and how many reads the server is running.
+     * @param server The server.
+     * @param call The read.
+     * @return The result of the read.
+     * @throws RemoteException if the server failed.
+     */
+    <T> T call(BackendService server, ProxyImpl.ServerCall<T> call) throws RemoteException {
+        Load load = load(server);
+        load.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return call.call(server);
+        } finally {
+            load.inFlight.decrementAndGet();
+            load.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Leaves a server out of the reads for a while after one of its reads failed.
+     * @param server The server.
+     */
+    void failed(BackendService server) {
+        long end = System.nanoTime() + COOLDOWN_NANOS;
+        load(server).cooldownEnd = end;
+        cooldownsEnd = end;
+    }
+
+    /**
+     * @param servers The servers of the membership view.
+     * @return The servers that aren't cooling down after a failure, or all of them if every one is.
+     */
+    List<BackendService> available(List<BackendService> servers) {
+        long now = System.nanoTime();
+        if (now - cooldownsEnd >= 0) {
+            return servers;
+        }
+        List<BackendService> available = new ArrayList<>(servers.size());
+        for (BackendService server : servers) {
+            if (now - load(server).cooldownEnd >= 0) {
+                available.add(server);
+            }
+        }
+        return available.isEmpty() ? servers : available;
+    }
+
+    /**
+     * Forgets the load of servers that left.
+     * @param servers The servers that are still there.
+     */
+    void retain(Set<BackendService> servers) {
+        loads.keySet().retainAll(servers);
+    }
+
+    /**
+     * @param names The registry names of the servers.
+     * @return The reads in flight and the latency of every server, by registry name.
+     */
+    Map<String, Long> getStats(Map<BackendService, String> names) {
+        Map<String, Long> stats = new HashMap<>();
+        loads.forEach((server, load) -> {
+            String name = names.get(server);
+            if (name != null) {
+                stats.put("routing." + name + ".inFlight", (long) load.inFlight.get());
+                stats.put("routing." + name + ".latencyMicros", (long) (load.latencyNanos() / 1_000));
+            }
+        });
+        return stats;
+    }
+
+    Load load(BackendService server) {
+        return loads.computeIfAbsent(server, k -> new Load());
+    }
+
+    /**
+     * @return Two different servers picked at random, or the only server twice.
+     */
+    static BackendService[] pickTwo(List<BackendService> servers) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(servers.size());
+        if (servers.size() == 1) {
+            return new BackendService[]{servers.get(first), servers.get(first)};
+        }
+        int second = random.nextInt(servers.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        return new BackendService[]{servers.get(first), servers.get(second)};
+    }
+
+    /**
+     * The load of one server: the reads it is running and the moving average of how long its reads took.
+     */
+    static final class Load {
+        final AtomicInteger inFlight = new AtomicInteger();
+        // the average is kept as the bits of a double so it can be updated without a lock
+        private final AtomicLong latencyBits = new AtomicLong(Double.doubleToLongBits(-1));
+        private volatile long cooldownEnd = System.nanoTime();
+
+        void record(long nanos) {
+            latencyBits.getAndUpdate(bits -> {
+                double current = Double.longBitsToDouble(bits);
+                double next = current < 0 ? nanos : current + EWMA_WEIGHT * (nanos - current);
+                return Double.doubleToLongBits(next);
+            });
+        }
+
+        /**
+         * @return The moving average latency in nanoseconds, 0 if no read finished yet.
+         */
+        double latencyNanos() {
+            return Math.max(0, Double.longBitsToDouble(latencyBits.get()));
+        }
+    }
+
+    private static final class RandomRouter extends ReadRouter {
+        @Override
+        BackendService choose(String fileName, List<BackendService> servers) {
+            return servers.get(ThreadLocalRandom.current().nextInt(servers.size()));
+        }
+    }
+
+    /**
+     * Power of two choices: of two random servers, the one with fewer reads in flight.
+     */
+    private static final class PowerOfTwoRouter extends ReadRouter {
+        @Override
+        BackendService choose(String fileName, List<BackendService> servers) {
+            BackendService[] pair = pickTwo(servers);
+            Load first = load(pair[0]);
+            Load second = load(pair[1]);
+            if (first.inFlight.get() != second.inFlight.get()) {
+                return first.inFlight.get() < second.inFlight.get() ? pair[0] : pair[1];
+            }
+            return first.latencyNanos() <= second.latencyNanos() ? pair[0] : pair[1];
+        }
+    }
+
+    /**
+     * Power of two choices weighed by latency: the cost of a server is its average latency times the reads it
+     * would be running, so a slow server gets fewer reads even when it isn't busy.
+     */
+    private static final class EwmaRouter extends ReadRouter {
+        @Override
+        BackendService choose(String fileName, List<BackendService> servers) {
+            BackendService[] pair = pickTwo(servers);
+            return cost(load(pair[0])) <= cost(load(pair[1])) ? pair[0] : pair[1];
+        }
+
+        private static double cost(Load load) {
+            return load.latencyNanos() * (load.inFlight.get() + 1);
+        }
+    }
+
+    /**
+     * Rendezvous hashing of the file over the servers, so every proxy sends a file to the same server and it is
+     * served from that server's read cache. The file goes to its second server when the first has more than twice
+     * as many reads in flight, so a hot file doesn't overload one server.
+     */
+    private static final class AffinityRouter extends ReadRouter {
+        private static final int OVERLOAD_SLACK = 4;
+
+        @Override
+        BackendService choose(String fileName, List<BackendService> servers) {
+            BackendService first = null;
+            BackendService second = null;
+            int fileHash = fileName == null ? 0 : fileName.hashCode();
+            long firstScore = Long.MIN_VALUE;
+            long secondScore = Long.MIN_VALUE;
+            for (BackendService server : servers) {
+                long score = mix(fileHash * 31L + server.hashCode());
+                if (first == null || score > firstScore) {
+                    second = first;
+                    secondScore = firstScore;
+                    first = server;
+                    firstScore = score;
+                } else if (second == null || score > secondScore) {
+                    second = server;
+                    secondScore = score;
+                }
+            }
+            if (second != null && load(first).inFlight.get() > 2 * load(second).inFlight.get() + OVERLOAD_SLACK) {
+                return second;
+            }
+            return first;
+        }
+
+        /**
+         * Spreads the bits of the key, so servers with close hash codes don't get the same files.
+         */
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            key *= 0xc4ceb9fe1a85ec53L;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs remote calls without blocking the caller and hands back their results as futures. Replication, catch-up
+ * transfers and the reads of the proxy all run here.
+ * RMI calls block the thread that makes them, so each call in flight still needs a thread. The execution mode is
+ * chosen with -Ddfs.executionMode. In virtual mode (the default) the calls run on virtual threads, which makes a call
+ * in flight cost a few hundred bytes instead of a platform thread, so a process can keep tens of thousands of calls
+ * in flight. The JVM needs Java 21 or later for that, older JVMs fall back to platform mode. In platform mode the
+ * calls run on a cached pool of daemon threads.
+ * The calls RMI itself receives always run on RMI's own thread per connection, it has no way to change that.
+ */
+public final class AsyncCalls {
+    /**
+     * What the calls run on.
+     */
+    public enum Mode {
+        VIRTUAL,
+        PLATFORM
+    }
+
+    private static final Mode REQUESTED_MODE = Mode.valueOf(System.getProperty("dfs.executionMode", "VIRTUAL").toUpperCase());
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final AtomicInteger tasksInFlight = new AtomicInteger();
+    private static final AtomicLong tasksRun = new AtomicLong();
+    private static Mode mode;
+    private static final ExecutorService EXECUTOR = createExecutor();
+    private static final Executor COUNTING_EXECUTOR = task -> {
+        tasksInFlight.incrementAndGet();
+        EXECUTOR.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                tasksInFlight.decrementAndGet();
+                tasksRun.incrementAndGet();
+            }
+        });
+    };
+
+    private AsyncCalls() {
+    }
+
+    /**
+     * @return The executor the calls run on, shared by the whole process.
+     */
+    public static Executor executor() {
+        return COUNTING_EXECUTOR;
+    }
+
+    /**
+     * @return The mode the calls run in, platform if virtual threads were asked for but the JVM doesn't have them.
+     */
+    public static Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Starts a remote call.
+     * @param call The call.
+     * @return The result of the call, or the RemoteException it failed with.
+     */
+    public static <T> CompletableFuture<T> supply(RemoteCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, COUNTING_EXECUTOR);
+    }
+
+    /**
+     * The execution mode and the threads of the process, so the modes can be compared under the same load.
+     * Virtual threads aren't counted as live threads, so in virtual mode the live threads stay flat as the tasks
+     * in flight go up.
+     * @return Map of metric name to value.
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("executor.virtual", mode == Mode.VIRTUAL ? 1L : 0L);
+        stats.put("executor.tasksInFlight", (long) tasksInFlight.get());
+        stats.put("executor.tasksRun", tasksRun.get());
+        stats.put("threads.live", (long) THREADS.getThreadCount());
+        stats.put("threads.peak", (long) THREADS.getPeakThreadCount());
+        return stats;
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor by reflection, so the code still compiles and runs on
+     * Java 17.
+     */
+    private static ExecutorService createExecutor() {
+        if (REQUESTED_MODE == Mode.VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                mode = Mode.VIRTUAL;
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21, running the calls on platform threads");
+            }
+        }
+        mode = Mode.PLATFORM;
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "async-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A remote call that returns a result.
+     */
+    @FunctionalInterface
+    public interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+}
@@ -0,0 +1,64 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log for the request paths. System.out locks the console for every line and waits for it to be written, so every
+ * request that logs would wait for the others. Here the caller only puts the line in a queue and a daemon thread
+ * writes the lines in batches. When the queue of -Ddfs.logQueue lines is full, lines are dropped and counted instead
+ * of slowing down the requests. Lines from the request paths can be turned off with -Ddfs.logRequests=false.
+ */
+public final class AsyncLog {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("dfs.logRequests", "true"));
+    private static final BlockingQueue<String> lines = new ArrayBlockingQueue<>(Math.max(1, Integer.getInteger("dfs.logQueue", 8192)));
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(AsyncLog::write, "async-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private AsyncLog() {
+    }
+
+    /**
+     * @param line The line to log.
+     */
+    public static void info(String line) {
+        if (ENABLED && !lines.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return How many lines were dropped because the queue was full.
+     */
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    private static void write() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(lines.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            lines.drainTo(batch);
+            for (String line : batch) {
+                text.append(line).append(System.lineSeparator());
+            }
+            System.out.print(text);
+            System.out.flush();
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+}
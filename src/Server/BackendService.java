@@ -4,6 +4,8 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public interface BackendService extends Remote {
 
@@ -11,12 +13,50 @@ public interface BackendService extends Remote {
 
     FileData write(String fileName, byte[] data, Instant timeStamp) throws RemoteException;
 
+    FileData replicaWrite(String fileName, byte[] data, Instant timeStamp, long term) throws RemoteException;
+
+    FileData readIfModified(String fileName, Instant knownVersion) throws RemoteException;
+
+    List<FileData> readMany(List<String> fileNames, List<Instant> knownVersions) throws RemoteException;
+
+    List<FileData> writeMany(List<FileData> files) throws RemoteException;
+
+    List<FileData> replicaWriteMany(List<FileData> files, long term) throws RemoteException;
+
+    TransferSession openRead(String fileName) throws RemoteException;
+
+    FileData readChunk(String sessionId, long offset, int length) throws RemoteException;
+
+    TransferSession openWrite(String fileName, long fileSize, Instant timeStamp) throws RemoteException;
+
+    TransferSession openReplicaWrite(String fileName, long fileSize, Instant timeStamp, long term) throws RemoteException;
+
+    FileData writeChunk(String sessionId, long offset, FileData chunk) throws RemoteException;
+
+    FileData commitWrite(String sessionId) throws RemoteException;
+
+    void closeSession(String sessionId) throws RemoteException;
+
+    List<String> missingBlocks(List<String> hashes) throws RemoteException;
+
+    FileData putBlock(FileData block) throws RemoteException;
+
+    FileData writeManifest(String fileName, List<String> hashes, Instant timeStamp, long term) throws RemoteException;
+
     ArrayList<BackendService> getAllServers() throws RemoteException;
 
+    void addReplica(String name, BackendService replica) throws RemoteException;
+
     void broadcastWrite(String fileName, byte[] data, Instant timeStamp) throws RemoteException;
 
     void becomeLeader() throws RemoteException;
 
     void readAll(BackendService newServer) throws RemoteException;
 
+    Map<String, Instant> getVersions() throws RemoteException;
+
+    String getNodeId() throws RemoteException;
+
+    Map<String, Long> getStats() throws RemoteException;
+
 }
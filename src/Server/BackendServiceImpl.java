@@ -1,7 +1,11 @@
 package Server;
 
-import java.io.File;
+import Operator.LeaderLease;
+import Operator.MembershipWatcher;
+import Operator.RegistryOperations;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -11,82 +15,257 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class contains the implementation of BackendServiceServer.
  * Main function includes read/write of files.
  */
 public class BackendServiceImpl extends UnicastRemoteObject implements BackendService {
-    private final Map<String, ReentrantReadWriteLock> fileLocks = new HashMap<>();
-    private final Map<String, Instant> fileTimeStamps = new HashMap<>();
+    private static final int CATCH_UP_PARALLELISM = Math.max(1, Integer.getInteger("dfs.catchUpParallelism", 4));
+
+    private final FileLockManager fileLocks = new FileLockManager();
+    private final ReadCache readCache = new ReadCache("readCache", Long.getLong("dfs.readCacheBytes", 64L * 1024 * 1024));
     private final Registry registry;
-    public boolean isLeader = false;
-    private ArrayList<BackendService> allServers;
+    private final FileStore store = FileStore.create(Paths.get("FileStorage"));
+    private final BlockFileStore blockStore = store instanceof BlockFileStore blocks ? blocks : null;
+    private final TransferSessions sessions = new TransferSessions(Paths.get("FileStorage", ".uploads"));
+    private final WriteAheadLog wal = new WriteAheadLog(Paths.get("FileStorage", ".wal"));
+    private final MetadataIndex index = new MetadataIndex(wal, store);
+    private final DataChannelServer dataChannel = DataChannelServer.start(sessions);
+    private final String nodeId = loadNodeId(Paths.get("FileStorage", ".node-id"));
+    private final ReplicaMembership membership;
+    private final Replicator replicator;
+    private final DownstreamLimits downstream = new DownstreamLimits();
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean rebalancePending = new AtomicBoolean();
+    private final AtomicLong rebalanceRuns = new AtomicLong();
+    private final AtomicLong filesSynced = new AtomicLong();
+    private final AtomicLong rebalanceFilesDropped = new AtomicLong();
+    private final LeaseKeeper lease;
 
     protected BackendServiceImpl(Registry registry) throws RemoteException {
         super();
         this.registry = registry;
+        this.membership = new ReplicaMembership(new MembershipWatcher(lookupOperator(registry)), this, nodeId);
+        this.replicator = new Replicator(membership::invalidate, downstream);
+        membership.onReplicasChange(downstream::retain);
+        this.lease = new LeaseKeeper(nodeId, this, index::latestVersion);
+        recover();
+        Metrics.register("Server", nodeId, this::getStats);
+        if (HashRing.PARTITIONED) {
+            membership.onRingChange(this::scheduleRebalance);
+        }
+    }
+
+    /**
+     * Connects the server to the operator's leader election. Heartbeats only start once the server has joined.
+     * @param operations The operator.
+     * @param onRejoin Run when this server has to join again, because another server was elected in its place or
+     *                 the operator unbound it after missed heartbeats.
+     */
+    public void startLease(RegistryOperations operations, Runnable onRejoin) {
+        lease.connect(operations);
+        lease.start(onRejoin);
+    }
+
+    /**
+     * Sends one heartbeat to the operator, used while joining. If there is no leader this server is elected.
+     * @param operations The operator.
+     * @return The lease the operator answered with.
+     * @throws RemoteException if the operator can't be reached.
+     */
+    LeaderLease heartbeat(RegistryOperations operations) throws RemoteException {
+        lease.connect(operations);
+        return lease.heartbeat();
+    }
+
+    /**
+     * Loads the metadata index from the write-ahead log after a restart, redoing writes a crash interrupted,
+     * so last-writer-wins keeps working. Staged files of uploads that never committed are deleted.
+     */
+    private void recover() {
+        try {
+            int fileCount = index.recover();
+            sessions.discardStagedFiles();
+            System.out.println("Loaded the metadata of " + fileCount + " files");
+        } catch (IOException e) {
+            System.out.println("There was an error while recovering the write-ahead log");
+            System.out.println(e.getMessage());
+            throw new RuntimeException(e);
+        }
     }
 
     /**
      * Reads the file from FileStorage. The critical section also has a lock so that only one process can read or write from the same file.
+     * Small files are served from the read cache, which writes keep up to date while they hold the file's write lock.
      * @param fileName The file the server is attempting to read from.
      * @return FileData if the file exists, null otherwise.
      */
     @Override
     public FileData read(String fileName) {
+        long start = System.nanoTime();
         try {
-            System.out.println("Entered read method");
-            if (fileName == null || fileName.trim().isEmpty()) {
-                return null;
+            try {
+                AsyncLog.info("Entered read method");
+                if (!FileStore.isValidName(fileName)) {
+                    return null;
+                }
+                ReadCache.Entry cached = readCache.getEncoded(fileName);
+                if (cached != null) {
+                    return new FileData(fileName, cached.data(), FileData.StatusCodeEnum.SUCCESS, cached.version(), cached.encoded());
+                }
+                if (index.contains(fileName)) {
+                    acquireReadLock(fileName);
+                    try {
+                        byte[] data = store.readAll(fileName);
+                        Instant version = index.version(fileName);
+                        readCache.put(fileName, data, version);
+                        return new FileData(fileName, data, FileData.StatusCodeEnum.SUCCESS, version);
+                    } finally {
+                        releaseReadLock(fileName);
+                    }
+                } else {
+                    return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+                }
+            } catch (IOException e) {
+                System.out.println("There was an error while reading the file");
+                System.out.println(e.getMessage());
+                throw new RuntimeException(e);
             }
-            Path path = Paths.get("FileStorage/" + fileName);
-            if (Files.exists(path)) {
-                acquireReadLock(fileName);
-                FileData readData = new FileData(fileName, Files.readAllBytes(path), FileData.StatusCodeEnum.SUCCESS);
-                releaseReadLock(fileName);
-                return readData;
-            } else {
+        } finally {
+            Metrics.recordSince("rpc.read", start);
+        }
+    }
+
+    /**
+     * Conditional read. Only sends the file if its version differs from the one the caller already has.
+     * Files bigger than one chunk are never sent, the caller gets the new version without data and has to open a read.
+     * @param fileName The file the server is attempting to read from.
+     * @param knownVersion The version the caller has cached.
+     * @return NOT_MODIFIED if the caller's version is current, otherwise the file like read does.
+     */
+    @Override
+    public FileData readIfModified(String fileName, Instant knownVersion) {
+        long start = System.nanoTime();
+        try {
+            if (!FileStore.isValidName(fileName)) {
                 return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
             }
-        } catch (IOException e) {
-            System.out.println("There was an error while reading the file");
-            System.out.println(e.getMessage());
-            throw new RuntimeException(e);
+            FileMetadata metadata = index.get(fileName);
+            if (metadata != null && metadata.version().equals(knownVersion)) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.NOT_MODIFIED, metadata.version());
+            }
+            if (metadata != null && metadata.size() > TransferSessions.CHUNK_SIZE) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.SUCCESS, metadata.version());
+            }
+            return read(fileName);
+        } finally {
+            Metrics.recordSince("rpc.readIfModified", start);
         }
     }
 
     /**
      * Writes the file to FileStorage. Only writes to a file if the new timestamp is later than the current file in FileStorage. The critical section also has a lock so that only one process can read and write to the same file.
+     * The data is staged and logged in the write-ahead log before it replaces the stored file, so a crash never leaves a torn file.
+     * Only the leader accepts the write while its lease is valid, with per-key leaders only the leader of the file does.
+     * The other servers answer NOT_LEADER. Names the server keeps its own state under, or that leave the storage
+     * directory, are refused before anything is logged.
      * @param fileName The file the server is attempting to write to.
      * @param data The byte array data of the file.
      * @param timeStamp The UTC time stamp the file is written.
      */
     @Override
     public FileData write(String fileName, byte[] data, Instant timeStamp) {
-        allServers = getAllServers();
-        System.out.println("Entered write method");
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered write method");
+            if (!FileStore.isValidName(fileName)) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+            }
+            if (!leads(fileName)) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.NOT_LEADER);
+            }
+            return writeLocally(fileName, data, timeStamp, true);
+        } finally {
+            Metrics.recordSince("rpc.write", start);
+        }
+    }
+
+    /**
+     * Stores a copy of a write sent by the server that coordinates the file. Follows the same rules as write,
+     * but is accepted by every server and never replicated again.
+     * @param fileName The file the server is attempting to write to.
+     * @param data The byte array data of the file.
+     * @param timeStamp The UTC time stamp the file is written.
+     * @param term The term of the leader that sent the write. Writes from a term older than the latest this server has seen are rejected.
+     */
+    @Override
+    public FileData replicaWrite(String fileName, byte[] data, Instant timeStamp, long term) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered replica write method");
+            if (!FileStore.isValidName(fileName)) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+            }
+            if (!acceptsTerm(term)) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.NOT_LEADER);
+            }
+            return writeLocally(fileName, data, timeStamp, false);
+        } finally {
+            Metrics.recordSince("rpc.replicaWrite", start);
+        }
+    }
+
+    /**
+     * Stages, logs and commits a write.
+     * @param fileName The file the server is attempting to write to.
+     * @param data The byte array data of the file.
+     * @param timeStamp The UTC time stamp the file is written.
+     * @param replicate true if the write is sent on to the replicas when this server coordinates the file.
+     */
+    private FileData writeLocally(String fileName, byte[] data, Instant timeStamp, boolean replicate) {
         Path directoryPath = Paths.get("FileStorage");
-        Path filePath = directoryPath.resolve(fileName); //adds file name to directory path
         try {
             if (Files.notExists(directoryPath)) {
                 Files.createDirectory(directoryPath);
             }
+            Path stagedFile = sessions.stage(data);
             acquireWriteLock(fileName);
-            Instant latestWrite = fileTimeStamps.computeIfAbsent(fileName, k -> timeStamp);
-            if (timeStamp.isBefore(latestWrite)) {
+            try {
+                if (isOutdated(fileName, timeStamp)) {
+                    Files.deleteIfExists(stagedFile);
+                    return new FileData(null, null, FileData.StatusCodeEnum.OVERWRITTEN);
+                }
+                // once logged, a staged file that isn't committed is left for the recovery
+                index.put(fileName, FileMetadata.of(data, timeStamp), stagedFile);
+                readCache.put(fileName, data, timeStamp);
+            } finally {
                 releaseWriteLock(fileName);
-                return new FileData(null, null, FileData.StatusCodeEnum.OVERWRITTEN);
-            } else {
-                fileTimeStamps.put(fileName, timeStamp);
             }
-            Files.write(filePath, data);
-            releaseWriteLock(fileName);
-            if (isLeader) {
-                broadcastWrite(fileName, data, timeStamp);
+            if (replicate && coordinates(fileName) && !replicateWrite(fileName, data, timeStamp)) {
+                return new FileData(null, null, FileData.StatusCodeEnum.UNDER_REPLICATED);
             }
             return new FileData(null, null, FileData.StatusCodeEnum.SUCCESS);
         } catch (IOException e) {
@@ -97,26 +276,618 @@ public class BackendServiceImpl extends UnicastRemoteObject implements BackendSe
     }
 
     /**
-     * Get the list of servers.
-     * @return The list of servers.
+     * Reads many files in one call. Only files that fit in one chunk are sent, larger files come back with their
+     * version but without data and have to be read on their own. Like readIfModified, a file the caller already has
+     * is not sent again.
+     * @param fileNames The files to read.
+     * @param knownVersions The version the caller has of each file, null where it has none. May be null itself.
+     * @return The files in the same order, with status OTHER for files that don't exist and NOT_MODIFIED for files
+     * whose version here isn't later than the caller's.
      */
     @Override
-    public ArrayList<BackendService> getAllServers() {
-        ArrayList<BackendService> servers = new ArrayList<>();
+    public List<FileData> readMany(List<String> fileNames, List<Instant> knownVersions) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered read many method with " + fileNames.size() + " files");
+            List<FileData> files = new ArrayList<>(fileNames.size());
+            for (int i = 0; i < fileNames.size(); i++) {
+                files.add(readInline(fileNames.get(i), knownVersions == null ? null : knownVersions.get(i)));
+            }
+            return files;
+        } finally {
+            Metrics.recordSince("rpc.readMany", start);
+        }
+    }
+
+    private FileData readInline(String fileName, Instant knownVersion) {
+        if (!FileStore.isValidName(fileName)) {
+            return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+        }
+        FileMetadata metadata = knownVersion == null ? null : index.get(fileName);
+        // any server may answer a batch, one that is behind the caller doesn't send its older copy
+        if (metadata != null && !metadata.version().isAfter(knownVersion)) {
+            return new FileData(fileName, null, FileData.StatusCodeEnum.NOT_MODIFIED, metadata.version());
+        }
+        ReadCache.Entry cached = readCache.getEncoded(fileName);
+        if (cached != null) {
+            return new FileData(fileName, cached.data(), FileData.StatusCodeEnum.SUCCESS, cached.version(), cached.encoded());
+        }
+        if (!index.contains(fileName)) {
+            return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+        }
+        acquireReadLock(fileName);
+        try (FileStore.StoredFile file = store.open(fileName)) {
+            Instant version = index.version(fileName);
+            if (file.size() > TransferSessions.CHUNK_SIZE) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.SUCCESS, version);
+            }
+            byte[] data = new byte[(int) file.size()];
+            readFully(file, data, 0);
+            readCache.put(fileName, data, version);
+            return new FileData(fileName, data, FileData.StatusCodeEnum.SUCCESS, version);
+        } catch (IOException e) {
+            System.out.println("There was an error while reading the file " + fileName);
+            return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+        } finally {
+            releaseReadLock(fileName);
+        }
+    }
+
+    /**
+     * Writes many files in one call. The files this server coordinates are stored with one log append for the whole
+     * batch and sent on to the replicas as one batch per replica. Each file follows the same rules as write.
+     * @param files The files, each with its name, data and the UTC time stamp it was written at as its version.
+     * @return The status of every file in the same order, NOT_LEADER for the files this server doesn't lead.
+     */
+    @Override
+    public List<FileData> writeMany(List<FileData> files) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered write many method with " + files.size() + " files");
+            return writeBatch(files, true);
+        } finally {
+            Metrics.recordSince("rpc.writeMany", start);
+        }
+    }
+
+    /**
+     * Stores a batch of copies sent by the server that coordinates the files, like replicaWrite does for one file.
+     * @param files The files, each with its name, data and time stamp as its version.
+     * @param term The term of the leader that sent the batch.
+     * @return The status of every file in the same order.
+     */
+    @Override
+    public List<FileData> replicaWriteMany(List<FileData> files, long term) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered replica write many method with " + files.size() + " files");
+            if (!acceptsTerm(term)) {
+                List<FileData> rejected = new ArrayList<>(files.size());
+                files.forEach(file -> rejected.add(new FileData(file.fileName(), null, FileData.StatusCodeEnum.NOT_LEADER)));
+                return rejected;
+            }
+            return writeBatch(files, false);
+        } finally {
+            Metrics.recordSince("rpc.replicaWriteMany", start);
+        }
+    }
+
+    /**
+     * Stages a batch, then logs and commits all of it while holding the write locks of its files, taken in name
+     * order so two batches can't deadlock. When a file is in the batch more than once only its latest version is
+     * stored.
+     * @param files The files of the batch.
+     * @param replicate true if the batch comes from a client, so it is checked for leadership and replicated.
+     * @return The status of every file in the same order.
+     */
+    private List<FileData> writeBatch(List<FileData> files, boolean replicate) {
+        FileData[] results = new FileData[files.size()];
+        Map<String, Integer> latest = new TreeMap<>();
+        Set<String> led = Set.of();
+        if (replicate) {
+            Set<String> names = new HashSet<>();
+            for (FileData file : files) {
+                if (FileStore.isValidName(file.fileName())) {
+                    names.add(file.fileName());
+                }
+            }
+            led = leads(names);
+        }
+        for (int i = 0; i < files.size(); i++) {
+            FileData file = files.get(i);
+            if (!FileStore.isValidName(file.fileName()) || file.fileData() == null || file.version() == null) {
+                results[i] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.OTHER);
+            } else if (replicate && !led.contains(file.fileName())) {
+                results[i] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.NOT_LEADER);
+            } else {
+                Integer previous = latest.get(file.fileName());
+                if (previous == null || file.version().isAfter(files.get(previous).version())) {
+                    if (previous != null) {
+                        results[previous] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.OVERWRITTEN);
+                    }
+                    latest.put(file.fileName(), i);
+                } else {
+                    results[i] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.OVERWRITTEN);
+                }
+            }
+        }
+        Map<String, Path> staged = new HashMap<>();
+        List<FileData> stored = new ArrayList<>();
+        Set<String> logged = new HashSet<>();
+        try {
+            Path directoryPath = Paths.get("FileStorage");
+            if (Files.notExists(directoryPath)) {
+                Files.createDirectory(directoryPath);
+            }
+            for (Map.Entry<String, Integer> file : latest.entrySet()) {
+                staged.put(file.getKey(), sessions.stage(files.get(file.getValue()).fileData()));
+            }
+            latest.keySet().forEach(this::acquireWriteLock);
+            try {
+                List<WriteAheadLog.Record> records = new ArrayList<>();
+                for (Map.Entry<String, Integer> entry : latest.entrySet()) {
+                    FileData file = files.get(entry.getValue());
+                    if (isOutdated(file.fileName(), file.version())) {
+                        results[entry.getValue()] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.OVERWRITTEN);
+                    } else {
+                        records.add(new WriteAheadLog.Record(file.fileName(), FileMetadata.of(file.fileData(), file.version()), staged.get(file.fileName())));
+                        stored.add(file);
+                    }
+                }
+                records.forEach(record -> logged.add(record.fileName()));
+                index.putAll(records);
+                for (FileData file : stored) {
+                    readCache.put(file.fileName(), file.fileData(), file.version(), file.encoded());
+                    results[latest.get(file.fileName())] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.SUCCESS);
+                }
+            } finally {
+                latest.keySet().forEach(this::releaseWriteLock);
+            }
+        } catch (IOException e) {
+            System.out.println("There was an error while writing a batch of files");
+            System.out.println(e.getMessage());
+            for (Map.Entry<String, Integer> entry : latest.entrySet()) {
+                if (results[entry.getValue()] == null) {
+                    results[entry.getValue()] = new FileData(entry.getKey(), null, FileData.StatusCodeEnum.OTHER);
+                }
+            }
+            return Arrays.asList(results);
+        } finally {
+            // a logged write whose staged file wasn't committed is left for the recovery
+            for (Map.Entry<String, Path> stagedFile : staged.entrySet()) {
+                if (logged.contains(stagedFile.getKey())) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(stagedFile.getValue());
+                } catch (IOException e) {
+                    System.out.println("Could not delete staged file " + stagedFile.getValue());
+                }
+            }
+        }
+        if (replicate) {
+            for (FileData file : replicateBatch(stored)) {
+                results[latest.get(file.fileName())] = new FileData(file.fileName(), null, FileData.StatusCodeEnum.UNDER_REPLICATED);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Sends the stored files of a batch to their replicas. Files with the same replicas go to each of them as one
+     * batch, which is all of them unless the ring is partitioned.
+     * @param stored The files that were stored.
+     * @return The files that not enough replicas confirmed.
+     */
+    private List<FileData> replicateBatch(List<FileData> stored) {
+        Map<Map<String, BackendService>, List<FileData>> groups = new HashMap<>();
+        for (FileData file : stored) {
+            if (coordinates(file.fileName())) {
+                groups.computeIfAbsent(replicaTargets(file.fileName()), k -> new ArrayList<>()).add(file);
+            }
+        }
+        List<FileData> underReplicated = new ArrayList<>();
+        groups.forEach((targets, batch) -> {
+            boolean replicated = replicator.replicate(targets, srvr -> {
+                for (FileData answer : srvr.replicaWriteMany(batch, lease.term())) {
+                    if (answer.status() != FileData.StatusCodeEnum.SUCCESS && answer.status() != FileData.StatusCodeEnum.OVERWRITTEN) {
+                        return answer.status();
+                    }
+                }
+                return FileData.StatusCodeEnum.SUCCESS;
+            }, confirmed -> batch.forEach(file -> index.addReplicas(file.fileName(), file.version(), confirmed)));
+            if (!replicated) {
+                underReplicated.addAll(batch);
+            }
+        });
+        return underReplicated;
+    }
+
+    /**
+     * Opens a chunked read of a file. Files that fit in one chunk are returned inline and no session is kept.
+     * Larger files stay open in the session, so the chunks all come from the version that was opened
+     * even if the file is replaced while it is being read. If the data channel is running the session can also be
+     * streamed from it without the file being copied into the heap.
+     * @param fileName The file the server is attempting to read from.
+     * @return The session to read the chunks with, or the file itself if it is small enough.
+     */
+    @Override
+    public TransferSession openRead(String fileName) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered open read method");
+            if (!FileStore.isValidName(fileName)) {
+                return new TransferSession(FileData.StatusCodeEnum.OTHER);
+            }
+            ReadCache.Entry cached = readCache.getEncoded(fileName);
+            if (cached != null && cached.data().length <= TransferSessions.CHUNK_SIZE) {
+                return new TransferSession(null, fileName, cached.data().length, TransferSessions.CHUNK_SIZE, cached.data(), cached.version(),
+                        FileData.StatusCodeEnum.SUCCESS, null, 0, cached.encoded());
+            }
+            if (!index.contains(fileName)) {
+                return new TransferSession(FileData.StatusCodeEnum.OTHER);
+            }
+            acquireReadLock(fileName);
+            try {
+                FileStore.StoredFile file = store.open(fileName);
+                long size = file.size();
+                Instant version = index.version(fileName);
+                if (size <= TransferSessions.CHUNK_SIZE) {
+                    try (file) {
+                        byte[] data = new byte[(int) size];
+                        readFully(file, data, 0);
+                        readCache.put(fileName, data, version);
+                        return new TransferSession(null, fileName, size, TransferSessions.CHUNK_SIZE, data, version, FileData.StatusCodeEnum.SUCCESS);
+                    }
+                }
+                String sessionId = sessions.openRead(fileName, file);
+                if (dataChannel != null) {
+                    return new TransferSession(sessionId, fileName, size, TransferSessions.CHUNK_SIZE, null, version, FileData.StatusCodeEnum.SUCCESS,
+                            dataChannel.host(), dataChannel.port());
+                }
+                return new TransferSession(sessionId, fileName, size, TransferSessions.CHUNK_SIZE, null, version, FileData.StatusCodeEnum.SUCCESS);
+            } catch (IOException e) {
+                System.out.println("There was an error while opening the file");
+                System.out.println(e.getMessage());
+                return new TransferSession(FileData.StatusCodeEnum.OTHER);
+            } finally {
+                releaseReadLock(fileName);
+            }
+        } finally {
+            Metrics.recordSince("rpc.openRead", start);
+        }
+    }
+
+    /**
+     * Reads one chunk of a file opened with openRead.
+     * @param sessionId The id of the read session.
+     * @param offset Position in the file to start reading from.
+     * @param length Number of bytes wanted. Capped at the chunk size of the server.
+     * @return FileData holding the chunk, or SESSION_EXPIRED if the session no longer exists.
+     */
+    @Override
+    public FileData readChunk(String sessionId, long offset, int length) {
+        long start = System.nanoTime();
         try {
-            for (String name : registry.list()) {
-                if (name.contains("server") || name.contains("Server")) {
+            TransferSessions.ReadSession session = sessions.getReadSession(sessionId);
+            if (session == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+            try {
+                long remaining = Math.max(0, session.file.size() - offset);
+                byte[] chunk = new byte[(int) Math.min(remaining, Math.min(length, TransferSessions.CHUNK_SIZE))];
+                readFully(session.file, chunk, offset);
+                return new FileData(session.fileName, chunk, FileData.StatusCodeEnum.SUCCESS);
+            } catch (IOException e) {
+                System.out.println("There was an error while reading the file");
+                System.out.println(e.getMessage());
+                sessions.close(sessionId);
+                return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+            }
+        } finally {
+            Metrics.recordSince("rpc.readChunk", start);
+        }
+    }
+
+    /**
+     * Opens a chunked write of a file. Chunks are staged in a temporary file until commitWrite is called.
+     * Only the leader of the file accepts the upload, the other servers answer NOT_LEADER.
+     * @param fileName The file the server is attempting to write to.
+     * @param fileSize The size of the file. The upload is only committed once exactly this many bytes were written.
+     * @param timeStamp The UTC time stamp the file is written.
+     * @return The session to send the chunks with.
+     */
+    @Override
+    public TransferSession openWrite(String fileName, long fileSize, Instant timeStamp) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered open write method");
+            if (!FileStore.isValidName(fileName)) {
+                return new TransferSession(FileData.StatusCodeEnum.OTHER);
+            }
+            if (!leads(fileName)) {
+                return new TransferSession(FileData.StatusCodeEnum.NOT_LEADER);
+            }
+            return openUpload(fileName, fileSize, timeStamp, false);
+        } finally {
+            Metrics.recordSince("rpc.openWrite", start);
+        }
+    }
+
+    /**
+     * Opens a chunked write of a copy sent by the server that coordinates the file. The upload is accepted by every
+     * server and isn't replicated again when it is committed.
+     * @param fileName The file the server is attempting to write to.
+     * @param fileSize The size of the file.
+     * @param timeStamp The UTC time stamp the file is written.
+     * @param term The term of the leader that sent the write.
+     * @return The session to send the chunks with.
+     */
+    @Override
+    public TransferSession openReplicaWrite(String fileName, long fileSize, Instant timeStamp, long term) {
+        long start = System.nanoTime();
+        try {
+            AsyncLog.info("Entered open replica write method");
+            if (!acceptsTerm(term)) {
+                return new TransferSession(FileData.StatusCodeEnum.NOT_LEADER);
+            }
+            return openUpload(fileName, fileSize, timeStamp, true);
+        } finally {
+            Metrics.recordSince("rpc.openReplicaWrite", start);
+        }
+    }
+
+    private TransferSession openUpload(String fileName, long fileSize, Instant timeStamp, boolean replica) {
+        if (!FileStore.isValidName(fileName) || fileSize < 0) {
+            return new TransferSession(FileData.StatusCodeEnum.OTHER);
+        }
+        try {
+            String sessionId = sessions.openWrite(fileName, fileSize, timeStamp, replica);
+            return new TransferSession(sessionId, fileName, fileSize, TransferSessions.CHUNK_SIZE, null, null, FileData.StatusCodeEnum.SUCCESS);
+        } catch (IOException e) {
+            System.out.println("There was an error while opening the upload");
+            System.out.println(e.getMessage());
+            return new TransferSession(FileData.StatusCodeEnum.OTHER);
+        }
+    }
+
+    /**
+     * Writes one chunk of an upload opened with openWrite. Chunks are written at their offset so a chunk can be resent,
+     * but a chunk may not start past the end of the bytes written so far or end past the size of the file, so the
+     * staged file never has holes.
+     * The chunk is sent as a FileData, so it is compressed on the wire like a whole file is.
+     * @param sessionId The id of the write session.
+     * @param offset Position in the file the chunk starts at.
+     * @param chunk The bytes of the chunk as its data.
+     * @return SUCCESS, SESSION_EXPIRED if the session no longer exists, or OTHER if the chunk is out of place.
+     */
+    @Override
+    public FileData writeChunk(String sessionId, long offset, FileData chunk) {
+        long start = System.nanoTime();
+        try {
+            TransferSessions.WriteSession session = sessions.getWriteSession(sessionId);
+            if (session == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+            if (chunk == null || chunk.fileData() == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+            }
+            try {
+                synchronized (session) {
+                    if (offset < 0 || offset > session.written || offset + chunk.fileData().length > session.fileSize) {
+                        return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk.fileData());
+                    while (buffer.hasRemaining()) {
+                        session.channel.write(buffer, offset + buffer.position());
+                    }
+                    session.written = Math.max(session.written, offset + chunk.fileData().length);
+                }
+                return new FileData(null, null, FileData.StatusCodeEnum.SUCCESS);
+            } catch (IOException e) {
+                System.out.println("There was an error while writing the chunk");
+                System.out.println(e.getMessage());
+                sessions.close(sessionId);
+                return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+            }
+        } finally {
+            Metrics.recordSince("rpc.writeChunk", start);
+        }
+    }
+
+    /**
+     * Commits an upload opened with openWrite. Follows the same rules as write: the staged file only replaces the
+     * stored one if its timestamp is the latest, and the leader then streams it to the other replicas.
+     * A leader whose lease ran out while the upload was sent drops it and answers NOT_LEADER, and an upload that is
+     * missing bytes of the size it was opened with is dropped with OTHER.
+     * @param sessionId The id of the write session.
+     * @return SUCCESS, OVERWRITTEN if a later write already happened, or SESSION_EXPIRED if the session no longer exists.
+     */
+    @Override
+    public FileData commitWrite(String sessionId) {
+        long start = System.nanoTime();
+        try {
+            TransferSessions.WriteSession session = sessions.removeWriteSession(sessionId);
+            if (session == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.SESSION_EXPIRED);
+            }
+            AsyncLog.info("Entered commit write method");
+            String fileName = session.fileName;
+            synchronized (session) {
+                if (session.written != session.fileSize) {
+                    session.discard();
+                    return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+                }
+            }
+            if (!session.replica && !HashRing.KEY_LEADERS && !lease.holdsLease()) {
+                session.discard();
+                return new FileData(fileName, null, FileData.StatusCodeEnum.NOT_LEADER);
+            }
+            FileStore.StoredFile replicationSource = null;
+            boolean logged = false;
+            try {
+                session.channel.force(false);
+                session.channel.close();
+                FileMetadata metadata = FileMetadata.of(session.tempFile, session.timeStamp);
+                acquireWriteLock(fileName);
+                try {
+                    if (isOutdated(fileName, session.timeStamp)) {
+                        Files.deleteIfExists(session.tempFile);
+                        return new FileData(fileName, null, FileData.StatusCodeEnum.OVERWRITTEN);
+                    }
+                    logged = true;
+                    index.put(fileName, metadata, session.tempFile);
+                    readCache.invalidate(fileName);
+                    if (!session.replica && coordinates(fileName)) {
+                        replicationSource = store.open(fileName);
+                    }
+                } finally {
+                    releaseWriteLock(fileName);
+                }
+                if (replicationSource != null) {
+                    if (!broadcastFile(fileName, replicationSource, session.timeStamp)) {
+                        return new FileData(fileName, null, FileData.StatusCodeEnum.UNDER_REPLICATED, session.timeStamp);
+                    }
+                }
+                return new FileData(fileName, null, FileData.StatusCodeEnum.SUCCESS, session.timeStamp);
+            } catch (IOException e) {
+                System.out.println("There was an error while committing the file");
+                System.out.println(e.getMessage());
+                if (!logged) {
+                    // a logged write whose staged file wasn't committed is left for the recovery
+                    session.discard();
+                }
+                return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+            }
+        } finally {
+            Metrics.recordSince("rpc.commitWrite", start);
+        }
+    }
+
+    /**
+     * Closes a read session, or aborts a write session and deletes its staged data.
+     * @param sessionId The id of the session.
+     */
+    @Override
+    public void closeSession(String sessionId) {
+        sessions.close(sessionId);
+    }
+
+    /**
+     * Used by the leader before it sends a file that is stored as blocks, so only blocks this server doesn't have are sent.
+     * @param hashes The hashes of the blocks of the file.
+     * @return The hashes of the blocks this server is missing, or null if this server doesn't store files as blocks.
+     */
+    @Override
+    public List<String> missingBlocks(List<String> hashes) {
+        if (blockStore == null || hashes == null) {
+            return null;
+        }
+        return blockStore.missingBlocks(hashes);
+    }
+
+    /**
+     * Stores one block sent by the leader. The block is only stored if its contents match the hash.
+     * A block that was sent compressed is stored as it was sent.
+     * @param block The block, with its hash as its name.
+     * @return SUCCESS if the block was stored.
+     */
+    @Override
+    public FileData putBlock(FileData block) {
+        long start = System.nanoTime();
+        try {
+            if (blockStore == null || block == null || block.fileName() == null || block.fileData() == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+            }
+            try {
+                blockStore.putBlock(block.fileName(), block.fileData(), block.encoded());
+                return new FileData(null, null, FileData.StatusCodeEnum.SUCCESS);
+            } catch (IOException e) {
+                System.out.println("There was an error while storing the block");
+                System.out.println(e.getMessage());
+                return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+            }
+        } finally {
+            Metrics.recordSince("rpc.putBlock", start);
+        }
+    }
+
+    /**
+     * Replaces a file with a list of blocks that were already sent with putBlock. Follows the same rules as write,
+     * the file is only replaced if the timestamp is the latest. The manifest is staged and logged before it replaces
+     * the stored one, so a crash in between is redone by the recovery like any other write.
+     * @param fileName The file the server is attempting to write to.
+     * @param hashes The hashes of the blocks of the file, in order.
+     * @param timeStamp The UTC time stamp the file is written.
+     * @param term The term of the leader that sent the write.
+     * @return SUCCESS, or OVERWRITTEN if a later write already happened.
+     */
+    @Override
+    public FileData writeManifest(String fileName, List<String> hashes, Instant timeStamp, long term) {
+        long start = System.nanoTime();
+        try {
+            if (blockStore == null || !FileStore.isValidName(fileName) || hashes == null) {
+                return new FileData(null, null, FileData.StatusCodeEnum.OTHER);
+            }
+            if (!acceptsTerm(term)) {
+                return new FileData(fileName, null, FileData.StatusCodeEnum.NOT_LEADER);
+            }
+            AsyncLog.info("Entered write manifest method");
+            Path stagedManifest = null;
+            boolean logged = false;
+            acquireWriteLock(fileName);
+            try {
+                if (isOutdated(fileName, timeStamp)) {
+                    return new FileData(fileName, null, FileData.StatusCodeEnum.OVERWRITTEN);
+                }
+                stagedManifest = sessions.stage(blockStore.manifest(hashes), BlockFileStore.STAGED_MANIFEST);
+                FileMetadata metadata;
+                try (FileStore.StoredFile file = blockStore.openStaged(stagedManifest)) {
+                    metadata = FileMetadata.of(file, timeStamp);
+                }
+                // the blocks were renamed into place by putBlock, so they are synced before the manifest is logged
+                store.sync();
+                logged = true;
+                index.put(fileName, metadata, stagedManifest);
+                readCache.invalidate(fileName);
+                return new FileData(fileName, null, FileData.StatusCodeEnum.SUCCESS, timeStamp);
+            } catch (IOException e) {
+                System.out.println("There was an error while writing the manifest");
+                System.out.println(e.getMessage());
+                if (!logged && stagedManifest != null) {
+                    // a logged write whose staged file wasn't committed is left for the recovery
                     try {
-                        servers.add((BackendService) registry.lookup(name));
-                    } catch (RemoteException | NotBoundException e) {
-                        throw new RuntimeException(e);
+                        Files.deleteIfExists(stagedManifest);
+                    } catch (IOException deleteError) {
+                        System.out.println("Could not delete staged file " + stagedManifest);
                     }
                 }
+                return new FileData(fileName, null, FileData.StatusCodeEnum.OTHER);
+            } finally {
+                releaseWriteLock(fileName);
             }
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
+        } finally {
+            Metrics.recordSince("rpc.writeManifest", start);
         }
-        return servers;
+    }
+
+    /**
+     * Get the list of servers.
+     * @return The list of replica servers, not including this one.
+     */
+    @Override
+    public ArrayList<BackendService> getAllServers() {
+        return new ArrayList<>(membership.replicas().values());
+    }
+
+    /**
+     * Called by a replica once it has joined, so the leader starts replicating to it without waiting for the next refresh.
+     * @param name The registry name of the replica.
+     * @param replica The replica that joined.
+     */
+    @Override
+    public void addReplica(String name, BackendService replica) {
+        membership.add(name, replica);
     }
 
     /**
@@ -127,39 +898,520 @@ public class BackendServiceImpl extends UnicastRemoteObject implements BackendSe
      */
     @Override
     public void broadcastWrite(String fileName, byte[] data, Instant timeStamp) {
-        for (BackendService srvr : allServers) {
+        replicateWrite(fileName, data, timeStamp);
+    }
+
+    /**
+     * Sends the write to all other available replicas in parallel.
+     * @param fileName The file name that has been written to.
+     * @param data Byte array of the file.
+     * @param timeStamp UTC time stamp of the file.
+     * @return true if enough replicas confirmed the write for the replication mode.
+     */
+    private boolean replicateWrite(String fileName, byte[] data, Instant timeStamp) {
+        // compressed once here, every replica is sent the same compressed copy
+        FileData copy = new FileData(fileName, data, null, timeStamp, Compression.encode(data));
+        return replicator.replicate(replicaTargets(fileName), srvr -> sendCopy(srvr, copy),
+                confirmed -> index.addReplicas(fileName, timeStamp, confirmed));
+    }
+
+    /**
+     * Sends a copy of a file to a replica as a batch of one, so the data is compressed like every FileData is.
+     * @param copy The file, with its name, data and time stamp as its version.
+     * @return The status returned by the replica.
+     */
+    private FileData.StatusCodeEnum sendCopy(BackendService target, FileData copy) throws RemoteException {
+        return target.replicaWriteMany(List.of(copy), lease.term()).get(0).status();
+    }
+
+    /**
+     * Streams a committed file to all other available replicas in parallel.
+     * The file is closed once every replica has finished, which can be after this method returns.
+     * @param fileName The file name that has been written to.
+     * @param source The committed file.
+     * @param timeStamp UTC time stamp of the file.
+     * @return true if enough replicas confirmed the write for the replication mode.
+     */
+    private boolean broadcastFile(String fileName, FileStore.StoredFile source, Instant timeStamp) {
+        return replicator.replicate(replicaTargets(fileName), srvr -> streamFile(srvr, fileName, source, timeStamp), confirmed -> {
+            index.addReplicas(fileName, timeStamp, confirmed);
             try {
-                srvr.write(fileName, data, timeStamp);
-                System.out.println("Sent to another server");
-            } catch (RemoteException e) {
-                System.err.println("Error writing to replica server " + srvr + e.getMessage());
+                source.close();
+            } catch (IOException e) {
+                System.err.println("Error closing replication source for " + fileName + " " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Returns the metrics of this server, such as the replication lag of each replica.
+     * @return Map of metric name to value.
+     */
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = replicator.getStats();
+        stats.put("membership.replicas", (long) membership.replicas().size());
+        stats.put("membership.epoch", membership.epoch());
+        stats.put("membership.refreshes", membership.refreshes());
+        stats.put("sync.filesSent", filesSynced.get());
+        stats.put("lease.term", lease.term());
+        stats.put("lease.leader", lease.holdsLease() ? 1L : 0L);
+        stats.put("lease.missedHeartbeats", lease.missedHeartbeats());
+        stats.put("lease.staleWritesRejected", lease.staleWritesRejected());
+        if (HashRing.KEY_LEADERS) {
+            stats.put("ring.nodes", (long) membership.ring().size());
+        }
+        if (HashRing.PARTITIONED) {
+            stats.put("rebalance.runs", rebalanceRuns.get());
+            stats.put("rebalance.filesDropped", rebalanceFilesDropped.get());
+        }
+        stats.put("locks.active", (long) fileLocks.activeLocks());
+        stats.put("wal.appends", wal.appends());
+        stats.put("wal.syncs", wal.syncs());
+        stats.put("wal.compactions", wal.compactions());
+        stats.put("index.files", (long) index.size());
+        stats.putAll(readCache.getStats());
+        stats.putAll(AsyncCalls.getStats());
+        stats.putAll(Compression.getStats());
+        stats.putAll(Metrics.getStats());
+        stats.put("log.dropped", AsyncLog.dropped());
+        Map<BackendService, String> names = new HashMap<>();
+        membership.replicas().forEach((name, replica) -> names.put(replica, name));
+        stats.putAll(downstream.getStats(names));
+        return stats;
+    }
+
+    /**
+     * Sends a file to another server one chunk at a time, so only one chunk is ever held in memory.
+     * Files that fit in a single chunk are sent with a plain write. Files stored as blocks only send the blocks the
+     * target doesn't have yet, if the target stores files as blocks too.
+     * @param target The server to send the file to.
+     * @param fileName The name of the file.
+     * @param source The file to send.
+     * @param timeStamp UTC time stamp of the file.
+     * @return The status returned by the target server.
+     */
+    private FileData.StatusCodeEnum streamFile(BackendService target, String fileName, FileStore.StoredFile source, Instant timeStamp) throws IOException {
+        long size = source.size();
+        if (size <= TransferSessions.CHUNK_SIZE) {
+            byte[] data = new byte[(int) size];
+            readFully(source, data, 0);
+            return sendCopy(target, new FileData(fileName, data, null, timeStamp));
+        }
+        List<String> hashes = source.blockHashes();
+        List<String> missing = hashes == null ? null : target.missingBlocks(hashes);
+        if (missing != null) {
+            for (String hash : new LinkedHashSet<>(missing)) {
+                // sent in the form it is stored in, so a block stored compressed isn't compressed again
+                Compression.Encoded stored = blockStore.readStoredBlock(hash);
+                byte[] block = Compression.decode(stored);
+                FileData.StatusCodeEnum status = target.putBlock(new FileData(hash, block, null, null, stored.boundTo(block))).status();
+                if (status != FileData.StatusCodeEnum.SUCCESS) {
+                    return status;
+                }
+            }
+            return target.writeManifest(fileName, hashes, timeStamp, lease.term()).status();
+        }
+        TransferSession upload = target.openReplicaWrite(fileName, size, timeStamp, lease.term());
+        if (upload.status() != FileData.StatusCodeEnum.SUCCESS) {
+            return upload.status();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(upload.chunkSize(), TransferSessions.CHUNK_SIZE));
+        long offset = 0;
+        while (offset < size) {
+            buffer.clear();
+            int read = source.read(buffer, offset);
+            if (read < 0) {
+                break;
+            }
+            byte[] chunk = read == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), read);
+            FileData.StatusCodeEnum status = target.writeChunk(upload.sessionId(), offset, new FileData(null, chunk, null)).status();
+            if (status != FileData.StatusCodeEnum.SUCCESS) {
+                target.closeSession(upload.sessionId());
+                return status;
             }
+            offset += read;
         }
+        return target.commitWrite(upload.sessionId()).status();
     }
 
     /**
-     * Setter method for leader election.
+     * Called by the operator after it elected this server, so the server picks up its lease without waiting for the next heartbeat.
      */
     @Override
     public void becomeLeader() {
-        isLeader = true;
+        lease.heartbeatNow();
     }
 
     /**
-     * When a new server joins, primary server calls this method to write all files to the newly joined server.
+     * When a new server joins, primary server calls this method to bring it up to date.
+     * In partitioned mode the new server gets its files from every server once it is on the ring instead.
      * @param newServer A newly joined or previous dead server.
-     * @throws RemoteException
+     * @throws RemoteException if the new server can't be reached.
      */
     @Override
     public void readAll(BackendService newServer) throws RemoteException {
-        File[] allFiles = new File("./FileStorage").listFiles();
-        if (allFiles == null) {
+        if (HashRing.PARTITIONED) {
             return;
         }
-        for (File file : allFiles) {
-            if (file.isFile() && !file.isHidden()) {
-                FileData data = read(file.getName());
-                newServer.write(file.getName(), data.fileData(), Instant.now());
+        syncFiles(newServer, index.list());
+    }
+
+    /**
+     * Sends files to another server. Only files the other server is missing or has an older version of are sent,
+     * several at a time, and each keeps the version it has here.
+     * @param target The server to send the files to.
+     * @param fileNames The files the other server should have.
+     * @return The files the other server confirmed it has, at this version or a later one.
+     * @throws RemoteException if the other server can't be reached.
+     */
+    private Set<String> syncFiles(BackendService target, Collection<String> fileNames) throws RemoteException {
+        Map<String, Instant> theirVersions = target.getVersions();
+        Set<String> confirmed = ConcurrentHashMap.newKeySet();
+        List<String> outdated = new ArrayList<>();
+        for (String fileName : fileNames) {
+            Instant ourVersion = index.version(fileName);
+            Instant theirVersion = theirVersions.get(fileName);
+            if (ourVersion == null) {
+                continue;
+            }
+            if (theirVersion == null || theirVersion.isBefore(ourVersion)) {
+                outdated.add(fileName);
+            } else {
+                confirmed.add(fileName);
+            }
+        }
+        System.out.println("Sending " + outdated.size() + " of " + fileNames.size() + " files to another server");
+        // the transfers run on the shared executor, at most CATCH_UP_PARALLELISM at a time
+        Semaphore slots = new Semaphore(CATCH_UP_PARALLELISM);
+        List<CompletableFuture<Void>> transfers = new ArrayList<>();
+        try {
+            for (String fileName : outdated) {
+                slots.acquire();
+                transfers.add(AsyncCalls.supply(() -> {
+                    try {
+                        DownstreamLimits.Permit permit = downstream.acquire(target);
+                        try {
+                            if (sendFile(target, fileName)) {
+                                confirmed.add(fileName);
+                                filesSynced.incrementAndGet();
+                            }
+                            return (Void) null;
+                        } finally {
+                            permit.release();
+                        }
+                    } finally {
+                        slots.release();
+                    }
+                }));
+            }
+            CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RemoteException remoteException) {
+                throw remoteException;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while sending files to another server", e);
+        }
+        return confirmed;
+    }
+
+    /**
+     * Lists the version of every stored file, so the leader can tell which files a joining server is missing.
+     * @return Map of file name to version.
+     */
+    @Override
+    public Map<String, Instant> getVersions() {
+        return index.versions();
+    }
+
+    /**
+     * Sends the current version of one file to another server.
+     * @param target The server to send the file to.
+     * @param fileName The name of the file.
+     * @return true if the target server has the file afterwards.
+     * @throws RemoteException if the target server can't be reached.
+     */
+    private boolean sendFile(BackendService target, String fileName) throws RemoteException {
+        FileStore.StoredFile source;
+        Instant version;
+        acquireReadLock(fileName);
+        try {
+            source = store.open(fileName);
+            version = index.version(fileName);
+        } catch (IOException e) {
+            System.out.println("There was an error while reading the file " + fileName);
+            return false;
+        } finally {
+            releaseReadLock(fileName);
+        }
+        try (source) {
+            FileData.StatusCodeEnum status = streamFile(target, fileName, source, version);
+            return status == FileData.StatusCodeEnum.SUCCESS || status == FileData.StatusCodeEnum.OVERWRITTEN;
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("There was an error while sending the file " + fileName);
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return The id this server has on the hash ring. It is kept in the storage directory so it survives restarts.
+     */
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Whether this server sends the writes of a file on to the other servers: the leader elected by the operator does
+     * for every file, with per-key leaders the first owner of the file on the ring does.
+     * In partitioned mode a write of a file this server doesn't own comes from a stale ring, so a rebalance is
+     * scheduled to hand it off.
+     * @param fileName The file that is written.
+     * @return true if this server replicates the writes of the file.
+     */
+    private boolean coordinates(String fileName) {
+        if (!HashRing.KEY_LEADERS) {
+            return lease.isLeader();
+        }
+        return coordinates(fileName, membership.ring());
+    }
+
+    /**
+     * Whether this server is the first owner of a file on a given ring, for per-key leaders.
+     * @param fileName The file that is written.
+     * @param ring The ring to decide on.
+     * @return true if this server replicates the writes of the file.
+     */
+    private boolean coordinates(String fileName, HashRing ring) {
+        List<String> owners = ring.owners(fileName);
+        if (HashRing.PARTITIONED && !owners.contains(nodeId)) {
+            scheduleRebalance();
+        }
+        return !owners.isEmpty() && owners.get(0).equals(nodeId);
+    }
+
+    /**
+     * Whether this server leads a file a client is writing. The leader only does while its lease is valid.
+     * With per-key leaders the view is refreshed before answering no, so a server that just took over the files of a
+     * failed server accepts their writes right away.
+     * @param fileName The file that is written.
+     * @return true if this server coordinates the writes of the file.
+     */
+    private boolean leads(String fileName) {
+        if (!HashRing.KEY_LEADERS) {
+            return lease.holdsLease();
+        }
+        if (coordinates(fileName)) {
+            return true;
+        }
+        membership.refresh();
+        return coordinates(fileName);
+    }
+
+    /**
+     * Whether this server leads each file of a batch, like leads does for one file. The view is refreshed at most once
+     * for the whole batch, and every file is decided on the same ring.
+     * @param fileNames The files that are written.
+     * @return The files of the batch this server coordinates the writes of.
+     */
+    private Set<String> leads(Set<String> fileNames) {
+        Set<String> led = new HashSet<>();
+        if (!HashRing.KEY_LEADERS) {
+            if (lease.holdsLease()) {
+                led.addAll(fileNames);
+            }
+            return led;
+        }
+        HashRing ring = membership.ring();
+        for (String fileName : fileNames) {
+            if (coordinates(fileName, ring)) {
+                led.add(fileName);
+            }
+        }
+        if (led.size() < fileNames.size()) {
+            membership.refresh();
+            led.clear();
+            ring = membership.ring();
+            for (String fileName : fileNames) {
+                if (coordinates(fileName, ring)) {
+                    led.add(fileName);
+                }
+            }
+        }
+        return led;
+    }
+
+    /**
+     * Fences off writes from a leader that lost its lease. With per-key leaders the ring decides who coordinates a
+     * file, so terms aren't checked.
+     * @param term The term of the leader that sent a write.
+     * @return true if the write may be stored.
+     */
+    private boolean acceptsTerm(long term) {
+        return HashRing.KEY_LEADERS || lease.accepts(term);
+    }
+
+    /**
+     * @param fileName The file that is written.
+     * @return The servers a write of the file is replicated to, every replica, or in partitioned mode the other owners of the file.
+     */
+    private Map<String, BackendService> replicaTargets(String fileName) {
+        if (!HashRing.PARTITIONED) {
+            return membership.replicas();
+        }
+        HashRing ring = membership.ring();
+        Map<String, BackendService> targets = new HashMap<>();
+        for (String owner : ring.owners(fileName)) {
+            if (!owner.equals(nodeId)) {
+                targets.put(owner, ring.node(owner));
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Runs a rebalance on the rebalancer thread. Ring changes that arrive while one is waiting to run are merged into it.
+     */
+    private void scheduleRebalance() {
+        if (rebalancePending.compareAndSet(false, true)) {
+            rebalancer.execute(() -> {
+                rebalancePending.set(false);
+                rebalance();
+            });
+        }
+    }
+
+    /**
+     * Moves files to their owners after servers joined or left the ring. Every file this server has is sent to the
+     * owners that are missing it, and files this server no longer owns are deleted once all their owners have them.
+     * Only the files whose owners changed are sent, the others are already on their owners.
+     */
+    private void rebalance() {
+        HashRing ring = membership.ring();
+        Map<String, Instant> versions = index.versions();
+        Map<String, List<String>> filesByOwner = new HashMap<>();
+        List<String> handedOff = new ArrayList<>();
+        for (String fileName : versions.keySet()) {
+            List<String> owners = ring.owners(fileName);
+            if (owners.isEmpty()) {
+                continue;
+            }
+            for (String owner : owners) {
+                if (!owner.equals(nodeId)) {
+                    filesByOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(fileName);
+                }
+            }
+            if (!owners.contains(nodeId)) {
+                handedOff.add(fileName);
+            }
+        }
+        Map<String, Integer> confirmations = new HashMap<>();
+        for (Map.Entry<String, List<String>> owner : filesByOwner.entrySet()) {
+            try {
+                Set<String> confirmed = syncFiles(ring.node(owner.getKey()), owner.getValue());
+                confirmed.forEach(fileName -> confirmations.merge(fileName, 1, Integer::sum));
+            } catch (RemoteException e) {
+                System.err.println("Error rebalancing files to server " + owner.getKey() + " " + e.getMessage());
+                membership.invalidate();
+            }
+        }
+        int dropped = 0;
+        for (String fileName : handedOff) {
+            if (confirmations.getOrDefault(fileName, 0) == ring.owners(fileName).size() && drop(fileName, versions.get(fileName))) {
+                dropped++;
+            }
+        }
+        rebalanceRuns.incrementAndGet();
+        rebalanceFilesDropped.addAndGet(dropped);
+        System.out.println("Rebalanced " + versions.size() + " files over " + ring.size() + " servers, handed off " + dropped);
+    }
+
+    /**
+     * Deletes a file this server no longer owns, unless it was written again since the rebalance started.
+     * @param fileName The file to delete.
+     * @param version The version the owners confirmed.
+     * @return true if the file was deleted.
+     */
+    private boolean drop(String fileName, Instant version) {
+        acquireWriteLock(fileName);
+        try {
+            if (!version.equals(index.version(fileName)) || membership.ring().owners(fileName).contains(nodeId)) {
+                return false;
+            }
+            index.remove(fileName, version);
+            store.delete(fileName);
+            readCache.invalidate(fileName);
+            return true;
+        } catch (IOException e) {
+            System.out.println("There was an error while deleting the file " + fileName);
+            System.out.println(e.getMessage());
+            return false;
+        } finally {
+            releaseWriteLock(fileName);
+        }
+    }
+
+    /**
+     * @param registry The registry the operator is bound in.
+     * @return The operator.
+     * @throws RemoteException if the registry can't be reached.
+     */
+    private static RegistryOperations lookupOperator(Registry registry) throws RemoteException {
+        try {
+            return (RegistryOperations) registry.lookup("operator");
+        } catch (NotBoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the node id of this server, or creates one the first time the server starts.
+     * @param idFile The file the node id is kept in.
+     * @return The node id.
+     */
+    private static String loadNodeId(Path idFile) {
+        try {
+            if (Files.exists(idFile)) {
+                return Files.readString(idFile).trim();
+            }
+            String nodeId = UUID.randomUUID().toString();
+            Files.createDirectories(idFile.getParent());
+            Files.writeString(idFile, nodeId);
+            return nodeId;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Last-writer-wins check. Called with the file's write lock held.
+     * @param fileName The file that is written.
+     * @param timeStamp The UTC time stamp of the write.
+     * @return true if the stored version is the same or later than the write, so the write has to be dropped.
+     */
+    private boolean isOutdated(String fileName, Instant timeStamp) {
+        Instant latestWrite = index.version(fileName);
+        // a write of the version that is already stored is a repeat, so it isn't stored or replicated again
+        return latestWrite != null && !timeStamp.isAfter(latestWrite);
+    }
+
+    /**
+     * Fills the array from the file, starting at the given position.
+     * @param file The file to read from.
+     * @param target The array to fill.
+     * @param position Position in the file to start reading from.
+     */
+    private static void readFully(FileStore.StoredFile file, byte[] target, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(target);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
             }
         }
     }
@@ -169,8 +1421,7 @@ public class BackendServiceImpl extends UnicastRemoteObject implements BackendSe
      * @param fileName The file that is being read to.
      */
     public void acquireReadLock(String fileName) {
-        ReentrantReadWriteLock lock = getOrCreateLock(fileName);
-        lock.readLock().lock();
+        fileLocks.acquireReadLock(fileName);
     }
 
     /**
@@ -178,10 +1429,7 @@ public class BackendServiceImpl extends UnicastRemoteObject implements BackendSe
      * @param fileName The file that is being read to.
      */
     public void releaseReadLock(String fileName) {
-        ReentrantReadWriteLock lock = fileLocks.get(fileName);
-        if (lock != null) {
-            lock.readLock().unlock();
-        }
+        fileLocks.releaseReadLock(fileName);
     }
 
     /**
@@ -189,8 +1437,7 @@ public class BackendServiceImpl extends UnicastRemoteObject implements BackendSe
      * @param fileName The file that is being written to.
      */
     public void acquireWriteLock(String fileName) {
-        ReentrantReadWriteLock lock = getOrCreateLock(fileName);
-        lock.writeLock().lock();
+        fileLocks.acquireWriteLock(fileName);
     }
 
     /**
@@ -198,19 +1445,7 @@ public class BackendServiceImpl extends UnicastRemoteObject implements BackendSe
      * @param fileName The file that is being written to.
      */
     public void releaseWriteLock(String fileName) {
-        ReentrantReadWriteLock lock = fileLocks.get(fileName);
-        if (lock != null) {
-            lock.writeLock().unlock();
-        }
-    }
-
-    /**
-     * Create a lock for the specified file. The file can have one reader or one writer at a time to ensure consistency.
-     * @param fileName The file name of the file being read or written to.
-     * @return The lock object.
-     */
-    private synchronized ReentrantReadWriteLock getOrCreateLock(String fileName) {
-        return fileLocks.computeIfAbsent(fileName, k -> new ReentrantReadWriteLock());
+        fileLocks.releaseWriteLock(fileName);
     }
 
 }
@@ -7,61 +7,84 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.Map;
 
+import Operator.LeaderLease;
 import Operator.RegistryOperations;
 
 public class BackendServiceServer {
+    private static final int JOIN_ATTEMPTS = 5;
 
     /**
+     * The addresses can also be set with -Ddfs.hostname, -Ddfs.registryHost and -Ddfs.registryPort, which
+     * FailureScenarios uses to run a cluster on one machine.
      * @param args main class argument
      * @throws RemoteException      Used for catching errors for fault tolerance
      * @throws UnknownHostException required exception handling.
      */
     public static void main(String[] args) throws RemoteException, UnknownHostException {
-        System.setProperty("java.rmi.server.hostname", "192.168.183.70"); //Put your own machine's IP here
-        Registry registry = LocateRegistry.getRegistry("192.168.183.70", 1099); //Put IP of machine hosting RMI here.
-        RegistryOperations registryOperations = null;
+        System.setProperty("java.rmi.server.hostname", System.getProperty("dfs.hostname", "192.168.183.70")); //Put your own machine's IP here
+        Registry registry = LocateRegistry.getRegistry(System.getProperty("dfs.registryHost", "192.168.183.70"), //Put IP of machine hosting RMI here.
+                Integer.getInteger("dfs.registryPort", 1099));
         BackendServiceImpl server = new BackendServiceImpl(registry);
-        Map.Entry<String, BackendService> currentLeader = null;
         try {
-            // tries to bind to the primary server
-            registryOperations = (RegistryOperations) registry.lookup("operator");
-            currentLeader = registryOperations.getCentralAuthority();
-            // first server to come online, join as primary server
-            if (currentLeader.getValue() == null) {
-                server.isLeader = true;
-                registryOperations.setNewCentralAuthority("centralAuthority" + server.hashCode(), server);
-                System.out.println("Main Server bound with name: centralAuthority" + server.hashCode());
-            } else {
+            RegistryOperations registryOperations = (RegistryOperations) registry.lookup("operator");
+            join(server, registryOperations);
+            // a leader that lost its lease while it was still running, or a server the operator unbound after missed
+            // heartbeats, joins again as a replica
+            server.startLease(registryOperations, () -> new Thread(() -> {
+                try {
+                    join(server, registryOperations);
+                } catch (RemoteException | UnknownHostException e) {
+                    System.out.println("Could not join again as a replica " + e.getMessage());
+                }
+            }, "rejoin").start());
+        } catch (NotBoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Joins the cluster. The first server to come online is elected leader by its first heartbeat, the others catch
+     * up from the leader and bind as replicas. If the leader fails while a server joins, the server waits for the
+     * operator to elect another one and tries again.
+     * @param server The server that joins.
+     * @param registryOperations The operator.
+     * @throws RemoteException if the server couldn't join.
+     * @throws UnknownHostException required exception handling.
+     */
+    private static void join(BackendServiceImpl server, RegistryOperations registryOperations) throws RemoteException, UnknownHostException {
+        for (int attempt = 1; ; attempt++) {
+            Map.Entry<String, BackendService> currentLeader = registryOperations.getCentralAuthority();
+            try {
+                if (currentLeader.getValue() == null) {
+                    // no leader, join as primary server
+                    LeaderLease lease = server.heartbeat(registryOperations);
+                    if (server.getNodeId().equals(lease.leaderId())) {
+                        System.out.println("Main Server bound with name: " + lease.leaderName());
+                        return;
+                    }
+                    continue;
+                }
                 // join as a replica server
-                server.isLeader = false;
                 // if current leader is dead, following line will throw RemoteException
                 currentLeader.getValue().readAll(server);
                 String name = InetAddress.getLocalHost().getHostName() + server.hashCode() + "server";
                 registryOperations.bindRemoteObject(server, name);
+                currentLeader.getValue().addReplica(name, server);
                 System.out.println("New Server bound with name: " + name);
-            }
-        } catch (RemoteException e) {
-            // current leader is dead, initiate leader election
-            if (registryOperations != null && currentLeader != null) {
-                // find a new leader
-                registryOperations.unBindRemoteObject(currentLeader.getKey());
-                currentLeader = registryOperations.getCentralAuthority();
-                // if no servers are registered, become the new leader
-                if (currentLeader.getValue() == null) {
-                    server.isLeader = true;
-                    registryOperations.setNewCentralAuthority("centralAuthority" + server.hashCode(), server);
-                    System.out.println("Main Server bound with name: centralAuthority" + server.hashCode());
-                } else {
-                    // join as a replica server
-                    server.isLeader = false;
-                    currentLeader.getValue().readAll(server);
-                    String name = InetAddress.getLocalHost().getHostName() + server.hashCode() + "server";
-                    registryOperations.bindRemoteObject(server, name);
-                    System.out.println("New Server bound with name: " + name);
+                return;
+            } catch (RemoteException e) {
+                if (attempt == JOIN_ATTEMPTS) {
+                    throw e;
+                }
+                // current leader is dead, the operator elects a new one once its lease runs out
+                System.out.println("Leader " + currentLeader.getKey() + " did not answer, waiting for a new one");
+                try {
+                    Thread.sleep(LeaderLease.LEASE_MS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
                 }
             }
-        } catch (NotBoundException | UnknownHostException e) {
-            throw new RuntimeException(e);
         }
     }
 }
@@ -0,0 +1,419 @@
+package Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed store. Files are split into blocks at content defined boundaries, each block is stored once
+ * under its SHA-256 hash in .blocks/, and a file is a manifest in .manifests/ listing its blocks.
+ * Because the boundaries depend on the content and not on offsets, an edit only changes the blocks around it,
+ * and the same content under another name is stored only once.
+ * Blocks are never changed or deleted, so a file that is open keeps its version by holding on to its manifest.
+ * Blocks that compress well are stored compressed, as .z files that start with their codec and their length.
+ */
+class BlockFileStore implements FileStore {
+    private static final int MIN_BLOCK = 16 * 1024;
+    private static final int MAX_BLOCK = 256 * 1024;
+    // a boundary on average every 64 KB after the minimum
+    private static final long BOUNDARY_MASK = (1L << 16) - 1;
+    private static final long[] GEAR = new long[256];
+    private static final String COMPRESSED = ".z";
+    // staged files whose name starts with this are manifests, committed by renaming them instead of splitting them
+    static final String STAGED_MANIFEST = "manifest";
+
+    static {
+        // every server has to cut blocks at the same places, so the table is generated from a fixed seed
+        SplittableRandom random = new SplittableRandom(0x5EED_B10C);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Path blockDirectory;
+    private final Path manifestDirectory;
+
+    BlockFileStore(Path directory) {
+        this.blockDirectory = directory.resolve(".blocks");
+        this.manifestDirectory = directory.resolve(".manifests");
+    }
+
+    @Override
+    public StoredFile open(String fileName) throws IOException {
+        return new BlockFile(readManifest(fileName));
+    }
+
+    @Override
+    public byte[] readAll(String fileName) throws IOException {
+        Manifest manifest = readManifest(fileName);
+        byte[] data = new byte[Math.toIntExact(manifest.size())];
+        for (int i = 0; i < manifest.hashes().size(); i++) {
+            byte[] block = readBlock(manifest.hashes().get(i));
+            System.arraycopy(block, 0, data, (int) manifest.offsets()[i], block.length);
+        }
+        return data;
+    }
+
+    @Override
+    public void commit(String fileName, Path stagedFile) throws IOException {
+        if (Files.notExists(stagedFile)) {
+            return;
+        }
+        if (stagedFile.getFileName().toString().startsWith(STAGED_MANIFEST)) {
+            Files.createDirectories(manifestDirectory);
+            Files.move(stagedFile, manifestDirectory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        try (InputStream in = Files.newInputStream(stagedFile)) {
+            writeManifest(fileName, storeBlocks(in));
+        }
+        Files.deleteIfExists(stagedFile);
+    }
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        Files.deleteIfExists(manifestDirectory.resolve(fileName));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        if (Files.notExists(manifestDirectory)) {
+            return fileNames;
+        }
+        try (Stream<Path> manifests = Files.list(manifestDirectory)) {
+            manifests.filter(Files::isRegularFile)
+                    .map(manifest -> manifest.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .forEach(fileNames::add);
+        }
+        return fileNames;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        FileStore.syncDirectory(blockDirectory);
+        FileStore.syncDirectory(manifestDirectory);
+    }
+
+    @Override
+    public Instant lastModified(String fileName) throws IOException {
+        return Files.getLastModifiedTime(manifestDirectory.resolve(fileName)).toInstant();
+    }
+
+    /**
+     * @param hashes Block hashes another server wants to send.
+     * @return The hashes of the blocks this store doesn't have yet.
+     */
+    List<String> missingBlocks(List<String> hashes) {
+        List<String> missing = new ArrayList<>();
+        for (String hash : hashes) {
+            if (!isValidHash(hash) || (Files.notExists(blockDirectory.resolve(hash)) && Files.notExists(blockDirectory.resolve(hash + COMPRESSED)))) {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @param hash The hash of the block.
+     * @return The contents of the block, decompressed if it is stored compressed.
+     * @throws IOException if the block is missing or can't be read.
+     */
+    byte[] readBlock(String hash) throws IOException {
+        return Compression.decode(readStoredBlock(hash));
+    }
+
+    /**
+     * @param hash The hash of the block.
+     * @return The block in the form it is stored in, compressed or not.
+     * @throws IOException if the block is missing or can't be read.
+     */
+    Compression.Encoded readStoredBlock(String hash) throws IOException {
+        if (!isValidHash(hash)) {
+            throw new IOException("Invalid block hash " + hash);
+        }
+        Path compressed = blockDirectory.resolve(hash + COMPRESSED);
+        if (Files.notExists(compressed)) {
+            byte[] data = Files.readAllBytes(blockDirectory.resolve(hash));
+            return new Compression.Encoded(Compression.Codec.NONE, data.length, data);
+        }
+        ByteBuffer block = ByteBuffer.wrap(Files.readAllBytes(compressed));
+        Compression.Codec codec = Compression.codec(block.get());
+        int length = block.getInt();
+        byte[] data = new byte[block.remaining()];
+        block.get(data);
+        return new Compression.Encoded(codec, length, data);
+    }
+
+    private long blockSize(String hash) throws IOException {
+        Path compressed = blockDirectory.resolve(hash + COMPRESSED);
+        if (Files.notExists(compressed)) {
+            return Files.size(blockDirectory.resolve(hash));
+        }
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(5);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+                // the header is read in full
+            }
+            return header.getInt(1);
+        }
+    }
+
+    /**
+     * Stores a block received from another server after checking that its contents match the hash.
+     * @param hash The hash the block is stored under.
+     * @param data The contents of the block.
+     * @param encoded The form the block was sent in, stored as it is. Null to let the store compress it.
+     * @throws IOException if the contents don't match the hash or the block can't be written.
+     */
+    void putBlock(String hash, byte[] data, Compression.Encoded encoded) throws IOException {
+        if (!hash.equals(storeBlock(data, encoded))) {
+            throw new IOException("Block contents don't match hash " + hash);
+        }
+    }
+
+    /**
+     * Builds the manifest of a file from blocks that are already in the store. The caller stages it under a name
+     * starting with STAGED_MANIFEST and logs it, and commit then renames it into place like any staged write.
+     * @param hashes The hashes of the file's blocks, in order.
+     * @return The contents of the manifest.
+     * @throws IOException if a block is missing.
+     */
+    byte[] manifest(List<String> hashes) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String hash : hashes) {
+            if (!isValidHash(hash)) {
+                throw new IOException("Invalid block hash " + hash);
+            }
+            entries.add(hash + " " + blockSize(hash));
+        }
+        return encodeManifest(entries);
+    }
+
+    /**
+     * Opens the file a staged manifest describes, so its metadata can be logged before it is committed.
+     * @param stagedManifest The staged manifest.
+     * @return The opened file.
+     * @throws IOException if the manifest can't be read.
+     */
+    StoredFile openStaged(Path stagedManifest) throws IOException {
+        return new BlockFile(readManifest(stagedManifest));
+    }
+
+    /**
+     * Splits a stream into content defined blocks and stores the ones that aren't stored yet.
+     * A gear rolling hash is updated for every byte and a block ends where its low bits are all zero.
+     * @param in The contents to store.
+     * @return The manifest entries of the blocks, in order.
+     */
+    private List<String> storeBlocks(InputStream in) throws IOException {
+        List<String> entries = new ArrayList<>();
+        byte[] buffer = new byte[64 * 1024];
+        byte[] block = new byte[MAX_BLOCK];
+        int length = 0;
+        long hash = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                block[length++] = buffer[i];
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                if ((length >= MIN_BLOCK && (hash & BOUNDARY_MASK) == 0) || length == MAX_BLOCK) {
+                    entries.add(storeBlock(Arrays.copyOf(block, length), null) + " " + length);
+                    length = 0;
+                    hash = 0;
+                }
+            }
+        }
+        if (length > 0) {
+            entries.add(storeBlock(Arrays.copyOf(block, length), null) + " " + length);
+        }
+        return entries;
+    }
+
+    /**
+     * Stores one block under its hash, unless a block with that hash is already stored. A block received from another
+     * server is stored in the form it was sent in.
+     * @param encoded The form the block was sent in, or null.
+     * @return The hash of the block.
+     */
+    private String storeBlock(byte[] block, Compression.Encoded encoded) throws IOException {
+        String hash = sha256(block, block.length);
+        if (Files.notExists(blockDirectory.resolve(hash)) && Files.notExists(blockDirectory.resolve(hash + COMPRESSED))) {
+            encoded = Compression.encode(block, encoded);
+            Path blockFile = blockDirectory.resolve(encoded.codec() == Compression.Codec.NONE ? hash : hash + COMPRESSED);
+            ByteBuffer contents = ByteBuffer.wrap(block);
+            if (encoded.codec() != Compression.Codec.NONE) {
+                contents = ByteBuffer.allocate(5 + encoded.data().length);
+                contents.put((byte) encoded.codec().ordinal()).putInt(encoded.rawLength()).put(encoded.data()).flip();
+            }
+            Files.createDirectories(blockDirectory);
+            Path tempFile = Files.createTempFile(blockDirectory, "block", ".part");
+            try {
+                writeSynced(tempFile, contents);
+                Files.move(tempFile, blockFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ignored) {
+                // another write stored the same block first
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+        return hash;
+    }
+
+    private void writeManifest(String fileName, List<String> entries) throws IOException {
+        Files.createDirectories(manifestDirectory);
+        Path tempFile = Files.createTempFile(manifestDirectory, ".manifest", ".part");
+        try {
+            writeSynced(tempFile, ByteBuffer.wrap(encodeManifest(entries)));
+            Files.move(tempFile, manifestDirectory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static byte[] encodeManifest(List<String> entries) {
+        long size = 0;
+        for (String entry : entries) {
+            size += Long.parseLong(entry.substring(entry.indexOf(' ') + 1));
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(Long.toString(size));
+        lines.addAll(entries);
+        return String.join("\n", lines).concat("\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Manifest readManifest(String fileName) throws IOException {
+        return readManifest(manifestDirectory.resolve(fileName));
+    }
+
+    private static Manifest readManifest(Path manifestFile) throws IOException {
+        List<String> lines = Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+        int blockCount = lines.size() - 1;
+        List<String> hashes = new ArrayList<>(blockCount);
+        long[] offsets = new long[blockCount];
+        long offset = 0;
+        for (int i = 0; i < blockCount; i++) {
+            String[] fields = lines.get(i + 1).split(" ");
+            hashes.add(fields[0]);
+            offsets[i] = offset;
+            offset += Long.parseLong(fields[1]);
+        }
+        return new Manifest(hashes, offsets, offset);
+    }
+
+    private static void writeSynced(Path file, ByteBuffer data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static String sha256(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isValidHash(String hash) {
+        return hash != null && hash.length() == 64 && hash.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    /**
+     * The blocks of a file.
+     * @param hashes The hashes of the blocks, in order.
+     * @param offsets The position in the file each block starts at.
+     * @param size The size of the file.
+     */
+    private record Manifest(List<String> hashes, long[] offsets, long size) {
+    }
+
+    /**
+     * A file opened from its manifest. The most recently read block is kept so sequential reads load each block once.
+     */
+    private final class BlockFile implements StoredFile {
+        private final Manifest manifest;
+        private int cachedIndex = -1;
+        private byte[] cachedBlock;
+
+        BlockFile(Manifest manifest) {
+            this.manifest = manifest;
+        }
+
+        @Override
+        public long size() {
+            return manifest.size();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer target, long position) throws IOException {
+            if (position >= manifest.size()) {
+                return -1;
+            }
+            int read = 0;
+            while (target.hasRemaining() && position < manifest.size()) {
+                int index = Arrays.binarySearch(manifest.offsets(), position);
+                if (index < 0) {
+                    index = -index - 2;
+                }
+                if (index != cachedIndex) {
+                    cachedBlock = readBlock(manifest.hashes().get(index));
+                    cachedIndex = index;
+                }
+                int start = (int) (position - manifest.offsets()[index]);
+                int length = Math.min(target.remaining(), cachedBlock.length - start);
+                target.put(cachedBlock, start, length);
+                position += length;
+                read += length;
+            }
+            return read;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, MAX_BLOCK));
+            int read = read(buffer, position);
+            if (read <= 0) {
+                return 0;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return read;
+        }
+
+        @Override
+        public List<String> blockHashes() {
+            return manifest.hashes();
+        }
+
+        @Override
+        public void close() {
+            cachedBlock = null;
+        }
+    }
+}
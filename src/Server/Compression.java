@@ -0,0 +1,226 @@
+package Server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses file contents on the wire and in the block store. The codec is chosen with -Ddfs.compression: fast
+ * (the default) uses the fastest Deflater level, deflate the default level, and none turns compression off.
+ * Compression is decided per file or per chunk: a sample of -Ddfs.compressionSampleBytes from the middle of the data
+ * is compressed first, and data whose sample doesn't shrink by at least -Ddfs.compressionMinSaving percent is sent
+ * as is. Data smaller than -Ddfs.compressionMinBytes is never compressed.
+ * There is no shared cache of compressed forms. The encoded form travels with the data it belongs to instead: a
+ * FileData or TransferSession keeps the form it arrived in, a ReadCache entry keeps the form it was first sent in, and
+ * the block store keeps blocks compressed. Data a proxy passes on, a leader forwards to its replicas, a cached file
+ * that is sent again or a block sent to a replica then goes out without being compressed again. Chunks of a chunked
+ * upload are passed on by the proxy the same way. Chunks read from a stored file, by readChunk or when the leader
+ * streams a large file to its replicas, are compressed each time they are sent: a plain stored file has no compressed
+ * form to keep, and blocks don't line up with chunks.
+ */
+public final class Compression {
+    /**
+     * How a payload is encoded. Both deflate levels are decoded the same way.
+     */
+    public enum Codec {
+        NONE,
+        FAST,
+        DEFLATE
+    }
+
+    private static final Codec CODEC = Codec.valueOf(System.getProperty("dfs.compression", "FAST").toUpperCase());
+    private static final int MIN_BYTES = Integer.getInteger("dfs.compressionMinBytes", 512);
+    private static final int SAMPLE_BYTES = Math.max(256, Integer.getInteger("dfs.compressionSampleBytes", 4096));
+    private static final int MIN_SAVING = Math.min(90, Math.max(0, Integer.getInteger("dfs.compressionMinSaving", 10)));
+    private static final int MAX_RAW_BYTES = Integer.getInteger("dfs.compressionMaxRawBytes", 512 * 1024 * 1024);
+    // deflate never shrinks data by more than this factor, so a longer length can't be real
+    private static final long MAX_RATIO = 1032;
+
+    private static final AtomicLong rawBytes = new AtomicLong();
+    private static final AtomicLong encodedBytes = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+    private static final AtomicLong decodedBytes = new AtomicLong();
+
+    private Compression() {
+    }
+
+    /**
+     * Encodes data unless its encoded form is already known. A kept form is only used for the very array it was made
+     * from, so data that was replaced by other data of the same length is encoded again.
+     * @param data The data.
+     * @param known The encoded form of the data the caller kept, for example the form it arrived in, or null.
+     * @return The known form, or the data encoded like encode(data) does.
+     */
+    public static Encoded encode(byte[] data, Encoded known) {
+        if (known != null && known.encodes(data)) {
+            reused.incrementAndGet();
+            return known;
+        }
+        return encode(data);
+    }
+
+    /**
+     * Encodes data with the configured codec, if a sample of it compresses well enough.
+     * @param data The data.
+     * @return The encoded data, or the data itself with codec NONE.
+     */
+    public static Encoded encode(byte[] data) {
+        if (CODEC == Codec.NONE || data.length < MIN_BYTES || !compressible(data)) {
+            skipped.incrementAndGet();
+            return new Encoded(Codec.NONE, data.length, data);
+        }
+        byte[] compressed = deflate(data, 0, data.length, level(CODEC));
+        if (compressed == null) {
+            skipped.incrementAndGet();
+            return new Encoded(Codec.NONE, data.length, data);
+        }
+        rawBytes.addAndGet(data.length);
+        encodedBytes.addAndGet(compressed.length);
+        return new Encoded(CODEC, data.length, compressed, data);
+    }
+
+    /**
+     * @param encoded The encoded data.
+     * @return The decoded data.
+     * @throws IOException if the data is corrupt, or its length is more than it can decode to or than
+     * -Ddfs.compressionMaxRawBytes (512 MB).
+     */
+    public static byte[] decode(Encoded encoded) throws IOException {
+        if (encoded.codec() == Codec.NONE) {
+            return encoded.data();
+        }
+        int rawLength = encoded.rawLength();
+        if (rawLength < 0 || rawLength > MAX_RAW_BYTES || rawLength > encoded.data().length * MAX_RATIO) {
+            throw new IOException("Compressed data of " + encoded.data().length + " bytes can't decode to " + rawLength + " bytes");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded.data());
+            byte[] data = new byte[rawLength];
+            int length = 0;
+            while (length < data.length) {
+                // with room left for output, no progress means the stream ended early or wants what it wasn't given
+                int inflated = inflater.inflate(data, length, data.length - length);
+                if (inflated == 0) {
+                    throw new IOException("Compressed data ends after " + length + " of its " + data.length + " bytes");
+                }
+                length += inflated;
+            }
+            decodedBytes.addAndGet(length);
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed data is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return The bytes compressed and what they compressed to, how often data was sent uncompressed, and how often
+     * data was sent in the form it arrived in.
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("compression.rawBytes", rawBytes.get());
+        stats.put("compression.encodedBytes", encodedBytes.get());
+        stats.put("compression.skipped", skipped.get());
+        stats.put("compression.reused", reused.get());
+        stats.put("compression.decodedBytes", decodedBytes.get());
+        return stats;
+    }
+
+    /**
+     * Compresses a sample from the middle of the data with the fast level. The start of a file is often a header that
+     * compresses differently from the rest.
+     */
+    private static boolean compressible(byte[] data) {
+        int length = Math.min(SAMPLE_BYTES, data.length);
+        return deflate(data, (data.length - length) / 2, length, Deflater.BEST_SPEED) != null;
+    }
+
+    /**
+     * @return The compressed data, or null if it didn't shrink by the minimum saving.
+     */
+    private static byte[] deflate(byte[] data, int offset, int length, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] buffer = new byte[length - length * MIN_SAVING / 100];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < buffer.length) {
+                compressed += deflater.deflate(buffer, compressed, buffer.length - compressed);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] result = new byte[compressed];
+            System.arraycopy(buffer, 0, result, 0, compressed);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int level(Codec codec) {
+        return codec == Codec.FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * @param ordinal The ordinal of a codec as it was sent or stored.
+     * @return The codec.
+     * @throws IOException if no codec has the ordinal.
+     */
+    public static Codec codec(int ordinal) throws IOException {
+        Codec[] codecs = Codec.values();
+        if (ordinal < 0 || ordinal >= codecs.length) {
+            throw new IOException("Unknown compression codec " + ordinal);
+        }
+        return codecs[ordinal];
+    }
+
+    /**
+     * Data in encoded form.
+     * @param codec How the data is encoded.
+     * @param rawLength The length of the decoded data.
+     * @param data The encoded data.
+     * @param source The decoded array this form was made from or decoded to, or null if it isn't known.
+     */
+    public record Encoded(Codec codec, int rawLength, byte[] data, byte[] source) {
+
+        /**
+         * A form that isn't tied to any decoded array yet, unless it is the decoded data itself.
+         */
+        public Encoded(Codec codec, int rawLength, byte[] data) {
+            this(codec, rawLength, data, codec == Codec.NONE ? data : null);
+        }
+
+        /**
+         * @param decoded The array this form was decoded to.
+         * @return This form, tied to that array.
+         */
+        public Encoded boundTo(byte[] decoded) {
+            return new Encoded(codec, rawLength, data, decoded);
+        }
+
+        /**
+         * @param bytes A decoded array.
+         * @return true if this form was made from or decoded to that same array.
+         */
+        public boolean encodes(byte[] bytes) {
+            return bytes != null && bytes == source;
+        }
+
+        /**
+         * @return The bytes this form holds on top of the decoded data, nothing if it is the decoded data itself.
+         */
+        public long extraBytes() {
+            return codec == Codec.NONE ? 0 : data.length;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package Server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Socket next to RMI that serves read sessions straight from the file to the network.
+ * A client connects, sends the id of a read session, and gets back the file size followed by the file contents.
+ * The contents are sent with FileChannel.transferTo, so the file never has to be copied into the heap.
+ * At most -Ddfs.dataChannelThreads connections (64) are served at once and as many more wait for a thread, further
+ * connections are closed right away and the client reads through RMI instead. A client that doesn't send its session
+ * id within -Ddfs.dataChannelTimeoutMs (10000) is disconnected, so idle connections don't hold a thread.
+ */
+class DataChannelServer {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("dfs.dataChannel", "true"));
+    private static final int DATA_PORT = Integer.getInteger("dfs.dataPort", 0);
+    private static final int WORKERS = Math.max(1, Integer.getInteger("dfs.dataChannelThreads", 64));
+    private static final int READ_TIMEOUT_MS = Math.max(1, Integer.getInteger("dfs.dataChannelTimeoutMs", 10_000));
+
+    private final TransferSessions sessions;
+    private final ServerSocketChannel serverChannel;
+    private final String host;
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(WORKERS), runnable -> {
+        Thread thread = new Thread(runnable, "data-channel-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DataChannelServer(TransferSessions sessions, ServerSocketChannel serverChannel, String host) {
+        this.sessions = sessions;
+        this.serverChannel = serverChannel;
+        this.host = host;
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Opens the data channel and starts accepting connections.
+     * @param sessions The sessions of the server the channel belongs to.
+     * @return The running data channel, or null if it is disabled or the port could not be bound.
+     */
+    static DataChannelServer start(TransferSessions sessions) {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(DATA_PORT));
+            String host = System.getProperty("java.rmi.server.hostname", InetAddress.getLocalHost().getHostAddress());
+            DataChannelServer dataChannel = new DataChannelServer(sessions, serverChannel, host);
+            Thread acceptor = new Thread(dataChannel::acceptConnections, "data-channel-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            System.out.println("Data channel listening on " + host + ":" + dataChannel.port());
+            return dataChannel;
+        } catch (IOException e) {
+            System.out.println("Could not open the data channel, reads will only use RMI");
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    String host() {
+        return host;
+    }
+
+    int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void acceptConnections() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel socket = serverChannel.accept();
+                try {
+                    workers.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    System.err.println("Data channel is busy, closing a connection");
+                    socket.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error accepting data channel connection " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends the file of one read session over the socket and closes the session.
+     * @param socket The connection of the client.
+     */
+    private void serve(SocketChannel socket) {
+        try (socket) {
+            // the timeout only applies to the socket's own stream, not to a stream made with Channels
+            socket.socket().setSoTimeout(READ_TIMEOUT_MS);
+            String sessionId = new DataInputStream(socket.socket().getInputStream()).readUTF();
+            TransferSessions.ReadSession session = sessions.removeReadSession(sessionId);
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+            if (session == null) {
+                writeFully(socket, header.putLong(-1).flip());
+                return;
+            }
+            try {
+                long size = session.file.size();
+                writeFully(socket, header.putLong(size).flip());
+                long position = 0;
+                while (position < size) {
+                    position += session.file.transferTo(position, size - position, socket);
+                }
+            } finally {
+                session.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error serving data channel request " + e.getMessage());
+        }
+    }
+
+    private static void writeFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+}
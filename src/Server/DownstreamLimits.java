@@ -0,0 +1,107 @@
+package Server;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many calls a process makes to each server at the same time, -Ddfs.maxCallsPerServer (32 by default).
+ * With virtual threads the number of calls in flight is no longer limited by the threads of the caller, so without a
+ * limit a burst of writes could open thousands of connections to one slow replica. A call that waits longer than
+ * -Ddfs.callPermitTimeoutMs for its turn fails like a call to a server that is down.
+ * It also measures the calls to each server, so the execution modes can be compared.
+ */
+public class DownstreamLimits {
+    private static final int MAX_CALLS = Math.max(1, Integer.getInteger("dfs.maxCallsPerServer", 32));
+    private static final long PERMIT_TIMEOUT_MS = Long.getLong("dfs.callPermitTimeoutMs", 10_000L);
+
+    private final Map<BackendService, Downstream> downstreams = new ConcurrentHashMap<>();
+
+    /**
+     * Waits until a call to the server may start.
+     * @param server The server that is called.
+     * @return The permit, released in a finally block once the call has finished.
+     * @throws RemoteException if the permit didn't come in time.
+     */
+    public Permit acquire(BackendService server) throws RemoteException {
+        Downstream downstream = downstreams.computeIfAbsent(server, k -> new Downstream());
+        long start = System.nanoTime();
+        try {
+            if (!downstream.permits.tryAcquire(PERMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                downstream.rejected.incrementAndGet();
+                throw new RemoteException("Too many calls in flight to the server");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting to call the server", e);
+        }
+        long started = System.nanoTime();
+        downstream.waitNanos.addAndGet(started - start);
+        return new Permit(downstream, started);
+    }
+
+    /**
+     * Forgets the servers that left.
+     * @param servers The servers that are still there.
+     */
+    public void retain(Collection<BackendService> servers) {
+        downstreams.keySet().retainAll(servers);
+    }
+
+    /**
+     * @param names The registry names of the servers.
+     * @return The calls in flight, the calls that timed out waiting, and the average wait and latency of the calls to
+     * every server, by registry name.
+     */
+    public Map<String, Long> getStats(Map<BackendService, String> names) {
+        Map<String, Long> stats = new HashMap<>();
+        downstreams.forEach((server, downstream) -> {
+            String name = names.get(server);
+            if (name == null) {
+                return;
+            }
+            long calls = Math.max(1, downstream.calls.get());
+            stats.put("downstream." + name + ".inFlight", (long) (MAX_CALLS - downstream.permits.availablePermits()));
+            stats.put("downstream." + name + ".rejected", downstream.rejected.get());
+            stats.put("downstream." + name + ".waitMicros", TimeUnit.NANOSECONDS.toMicros(downstream.waitNanos.get() / calls));
+            stats.put("downstream." + name + ".latencyMicros", TimeUnit.NANOSECONDS.toMicros(downstream.latencyNanos.get() / calls));
+        });
+        return stats;
+    }
+
+    /**
+     * The right to make one call to a server.
+     */
+    public static final class Permit {
+        private final Downstream downstream;
+        private final long started;
+        private boolean released;
+
+        private Permit(Downstream downstream, long started) {
+            this.downstream = downstream;
+            this.started = started;
+        }
+
+        public void release() {
+            if (!released) {
+                released = true;
+                downstream.calls.incrementAndGet();
+                downstream.latencyNanos.addAndGet(System.nanoTime() - started);
+                downstream.permits.release();
+            }
+        }
+    }
+
+    private static final class Downstream {
+        final Semaphore permits = new Semaphore(MAX_CALLS);
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong latencyNanos = new AtomicLong();
+    }
+}
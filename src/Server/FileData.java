@@ -1,18 +1,44 @@
 package Server;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.time.Instant;
 
 /**
  * Used to return data from read and write operations. Allows us to return multiple values from a method.
  * @param fileName Name of the file being downloaded.
  * @param fileData Byte array of the file being downloaded.
  * @param status Status code of the operation. Used to return an appropriate error message.
+ * @param version Version (write time stamp) of the file that was read, null if it isn't known.
+ * @param encoded fileData in the form it arrived or is cached in, so it is sent on without being compressed again.
+ *                Null if it isn't known. It is never sent itself.
  */
-public record FileData(String fileName, byte[] fileData, StatusCodeEnum status) implements Serializable {
+public record FileData(String fileName, byte[] fileData, StatusCodeEnum status, Instant version,
+                       Compression.Encoded encoded) implements Serializable {
+
+    public FileData(String fileName, byte[] fileData, StatusCodeEnum status, Instant version) {
+        this(fileName, fileData, status, version, null);
+    }
+
+    public FileData(String fileName, byte[] fileData, StatusCodeEnum status) {
+        this(fileName, fileData, status, null);
+    }
+
+    /**
+     * Sent in the compact format of WireFormat instead of as a record.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new WireFormat.FileDataProxy(this);
+    }
+
     public enum StatusCodeEnum {
         SUCCESS,
         NO_SERVERS,
         OTHER,
-        OVERWRITTEN
+        OVERWRITTEN,
+        SESSION_EXPIRED,
+        UNDER_REPLICATED,
+        NOT_MODIFIED,
+        NOT_LEADER
     }
 }
@@ -0,0 +1,79 @@
+package Server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hands out a read/write lock per file. A file can have many readers or one writer at a time.
+ * Each lock is reference counted and removed as soon as nobody holds or waits for it,
+ * so the table only ever holds the files that are in use right now.
+ * Lookups only lock the bucket of the file, so threads working on different files don't block each other.
+ * The time spent waiting for each lock is recorded in the locks.readWait and locks.writeWait histograms.
+ */
+class FileLockManager {
+    private final ConcurrentHashMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+
+    void acquireReadLock(String fileName) {
+        long start = System.nanoTime();
+        reference(fileName).lock.readLock().lock();
+        Metrics.recordSince("locks.readWait", start);
+    }
+
+    void releaseReadLock(String fileName) {
+        LockEntry entry = locks.get(fileName);
+        if (entry != null) {
+            entry.lock.readLock().unlock();
+            dereference(fileName);
+        }
+    }
+
+    void acquireWriteLock(String fileName) {
+        long start = System.nanoTime();
+        reference(fileName).lock.writeLock().lock();
+        Metrics.recordSince("locks.writeWait", start);
+    }
+
+    void releaseWriteLock(String fileName) {
+        LockEntry entry = locks.get(fileName);
+        if (entry != null) {
+            entry.lock.writeLock().unlock();
+            dereference(fileName);
+        }
+    }
+
+    /**
+     * @return The number of files that currently have a lock.
+     */
+    int activeLocks() {
+        return locks.size();
+    }
+
+    /**
+     * Gets the lock entry for a file, creating it if needed, and counts the caller as a user of it.
+     * @param fileName The file being locked.
+     * @return The lock entry. It stays in the table until the caller releases it.
+     */
+    private LockEntry reference(String fileName) {
+        return locks.compute(fileName, (name, entry) -> {
+            if (entry == null) {
+                entry = new LockEntry();
+            }
+            entry.references++;
+            return entry;
+        });
+    }
+
+    /**
+     * Stops counting the caller as a user of the lock and removes the entry if nobody else uses it.
+     * @param fileName The file being unlocked.
+     */
+    private void dereference(String fileName) {
+        locks.computeIfPresent(fileName, (name, entry) -> --entry.references == 0 ? null : entry);
+    }
+
+    private static final class LockEntry {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // only changed inside compute calls on the map, which lock the entry's bucket
+        int references;
+    }
+}
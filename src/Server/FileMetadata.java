@@ -0,0 +1,83 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+
+/**
+ * What a server knows about one stored file.
+ * @param version The UTC time stamp of the write that stored the file.
+ * @param size The size of the file in bytes, or -1 if the file was deleted at this version.
+ * @param checksum CRC32C of the contents of the file.
+ * @param replicas The replicas that confirmed this version. Only kept by the leader.
+ */
+record FileMetadata(Instant version, long size, long checksum, Set<String> replicas) {
+
+    FileMetadata {
+        replicas = Set.copyOf(replicas);
+    }
+
+    /**
+     * @param replicas More replicas that confirmed this version.
+     * @return The same metadata with the replicas added.
+     */
+    FileMetadata withReplicas(Set<String> replicas) {
+        Set<String> merged = new TreeSet<>(this.replicas);
+        merged.addAll(replicas);
+        return new FileMetadata(version, size, checksum, merged);
+    }
+
+    boolean isDeleted() {
+        return size < 0;
+    }
+
+    /**
+     * @param version The version of the file that was deleted.
+     * @return Metadata recording that the file was deleted, so the delete can be logged.
+     */
+    static FileMetadata deleted(Instant version) {
+        return new FileMetadata(version, -1, 0, Set.of());
+    }
+
+    static FileMetadata of(byte[] data, Instant version) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return new FileMetadata(version, data.length, crc.getValue(), Set.of());
+    }
+
+    static FileMetadata of(Path file, Instant version) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CRC32C crc = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long size = 0;
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+                size += read;
+            }
+            return new FileMetadata(version, size, crc.getValue(), Set.of());
+        }
+    }
+
+    static FileMetadata of(FileStore.StoredFile file, Instant version) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int read;
+        while ((read = file.read(buffer, position)) > 0) {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.clear();
+            position += read;
+        }
+        return new FileMetadata(version, position, crc.getValue(), Set.of());
+    }
+}
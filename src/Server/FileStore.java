@@ -0,0 +1,128 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Storage engine behind a backend server. Callers hold the file's lock from FileLockManager around every call
+ * that changes a file, the store itself only has to make each change atomic.
+ */
+interface FileStore {
+
+    /**
+     * Opens a file for reading. The returned file keeps reading the version that was opened,
+     * even if the file is replaced before it is closed.
+     * @param fileName The file to open.
+     * @return The opened file.
+     * @throws IOException if the file doesn't exist or can't be read.
+     */
+    StoredFile open(String fileName) throws IOException;
+
+    byte[] readAll(String fileName) throws IOException;
+
+    /**
+     * Replaces a file with a file staged in the upload directory. The staged file is consumed.
+     * Committing the same staged file again after a crash has the same result.
+     * @param fileName The file to write.
+     * @param stagedFile The staged contents of the file.
+     * @throws IOException if the file can't be written.
+     */
+    void commit(String fileName, Path stagedFile) throws IOException;
+
+    /**
+     * Deletes a file. Files that are open keep reading the version they opened.
+     * @param fileName The file to delete.
+     * @throws IOException if the file can't be deleted.
+     */
+    void delete(String fileName) throws IOException;
+
+    List<String> list() throws IOException;
+
+    /**
+     * @param fileName The file to check.
+     * @return When the file was last replaced on this server. Used as its version when the version isn't known.
+     * @throws IOException if the file doesn't exist.
+     */
+    Instant lastModified(String fileName) throws IOException;
+
+    /**
+     * Makes every commit done so far survive a crash.
+     * @throws IOException if the storage can't be synced.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Creates the store selected with -Ddfs.storage, either plain files (the default) or content addressed blocks.
+     * @param directory The storage directory.
+     * @return The store.
+     */
+    static FileStore create(Path directory) {
+        if ("blocks".equalsIgnoreCase(System.getProperty("dfs.storage"))) {
+            return new BlockFileStore(directory);
+        }
+        return new PlainFileStore(directory);
+    }
+
+    /**
+     * Whether a client may store a file under a name. The server keeps its own state in dot files next to the stored
+     * files, so names starting with a dot are refused, and so are names that would leave the storage directory.
+     * @param fileName The name of the file.
+     * @return true if the name is a plain file name that isn't reserved by the server.
+     */
+    static boolean isValidName(String fileName) {
+        return fileName != null && !fileName.trim().isEmpty() && !fileName.startsWith(".")
+                && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0 && fileName.indexOf('\0') < 0;
+    }
+
+    /**
+     * Syncs a directory, so renames into it survive a crash. Not every platform can open a directory,
+     * where it can't the rename is left to the operating system.
+     * @param directory The directory to sync.
+     */
+    static void syncDirectory(Path directory) throws IOException {
+        if (Files.notExists(directory)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (UnsupportedOperationException | AccessDeniedException ignored) {
+            // directories can't be opened on this platform
+        }
+    }
+
+    /**
+     * A file opened for reading. Reads take an explicit position so several threads can read the same file.
+     */
+    interface StoredFile extends Closeable {
+
+        long size() throws IOException;
+
+        int read(ByteBuffer target, long position) throws IOException;
+
+        /**
+         * Copies part of the file to a channel, without going through the heap where the store allows it.
+         * @param position Position in the file to start from.
+         * @param count Maximum number of bytes to copy.
+         * @param target The channel to copy to.
+         * @return The number of bytes copied.
+         * @throws IOException if the file can't be read or the channel can't be written.
+         */
+        long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+        /**
+         * @return The hashes of the blocks the file is made of, or null if the store doesn't use blocks.
+         */
+        default List<String> blockHashes() {
+            return null;
+        }
+    }
+}
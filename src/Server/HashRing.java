@@ -0,0 +1,115 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring used when the cluster runs partitioned (-Ddfs.partitioned=true).
+ * Every server is placed on the ring at several points (virtual nodes) by hashing its node id, and a file is owned by
+ * the first servers found walking clockwise from the hash of its name. Adding or removing a server only moves the
+ * files between it and its neighbours on the ring.
+ * The ring also splits leadership by key when the cluster runs with per-key leaders (-Ddfs.keyLeaders=true, implied by
+ * partitioned mode): the first owner of a file coordinates its writes instead of the central authority, so writes are
+ * spread over every server and a failed server only moves the leadership of its own files.
+ * The ring is immutable, a new one is built whenever the servers change.
+ */
+public final class HashRing {
+    public static final boolean PARTITIONED = Boolean.getBoolean("dfs.partitioned");
+    public static final boolean KEY_LEADERS = PARTITIONED || Boolean.getBoolean("dfs.keyLeaders");
+    static final int REPLICATION_FACTOR = Math.max(1, Integer.getInteger("dfs.replicationFactor", 3));
+    private static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("dfs.virtualNodes", 64));
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    private final Map<String, BackendService> nodes;
+
+    /**
+     * @param nodes The servers on the ring by node id.
+     */
+    HashRing(Map<String, BackendService> nodes) {
+        this.nodes = Map.copyOf(nodes);
+        for (String nodeId : nodes.keySet()) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    /**
+     * The servers that store a file, in order. The first one coordinates the writes of the file.
+     * @param fileName The name of the file.
+     * @return The node ids of the owners, as many as the replication factor or every server if there are fewer.
+     */
+    public List<String> owners(String fileName) {
+        int count = Math.min(REPLICATION_FACTOR, nodes.size());
+        List<String> owners = new ArrayList<>(count);
+        if (count == 0) {
+            return owners;
+        }
+        long position = hash(fileName);
+        for (String nodeId : ring.tailMap(position, true).values()) {
+            if (owners.size() == count) {
+                return owners;
+            }
+            if (!owners.contains(nodeId)) {
+                owners.add(nodeId);
+            }
+        }
+        for (String nodeId : ring.values()) {
+            if (owners.size() == count) {
+                break;
+            }
+            if (!owners.contains(nodeId)) {
+                owners.add(nodeId);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * @param nodeId The node id of a server.
+     * @return The server, or null if it isn't on the ring.
+     */
+    public BackendService node(String nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    /**
+     * @param fileName The name of the file.
+     * @return The owners of the file, the first one being the coordinator.
+     */
+    public List<BackendService> ownerServers(String fileName) {
+        List<BackendService> servers = new ArrayList<>();
+        for (String nodeId : owners(fileName)) {
+            servers.add(nodes.get(nodeId));
+        }
+        return Collections.unmodifiableList(servers);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    Map<String, BackendService> nodes() {
+        return nodes;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
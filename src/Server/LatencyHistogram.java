@@ -0,0 +1,132 @@
+package Server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed relative error, in the style of HdrHistogram.
+ * Every power of two is split into 32 buckets, so a recorded value is off by at most 1/32 of itself, from nanoseconds
+ * up to hours, in 2048 counters. Recording only increments a counter, so it is cheap enough for every request and
+ * safe from any number of threads.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos The latency to record. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @param startNanos The System.nanoTime() the operation started at.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The highest latency of the bucket the percentile falls in, 0 if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return The maximum and the non-empty buckets as index:count pairs, so the histogram can be merged into the
+     * histogram of another process.
+     */
+    public String export() {
+        StringBuilder text = new StringBuilder(Long.toString(max.get())).append(';');
+        for (int i = 0; i < counts.length(); i++) {
+            long bucket = counts.get(i);
+            if (bucket > 0) {
+                text.append(i).append(':').append(bucket).append(',');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Adds the values of a histogram exported by export.
+     * @param exported The exported histogram.
+     */
+    public void merge(String exported) {
+        int separator = exported.indexOf(';');
+        max.accumulateAndGet(Long.parseLong(exported.substring(0, separator)), Math::max);
+        for (String bucket : exported.substring(separator + 1).split(",")) {
+            if (!bucket.isEmpty()) {
+                int colon = bucket.indexOf(':');
+                long bucketCount = Long.parseLong(bucket.substring(colon + 1));
+                counts.addAndGet(Integer.parseInt(bucket.substring(0, colon)), bucketCount);
+                count.addAndGet(bucketCount);
+            }
+        }
+    }
+
+    /**
+     * Adds the count, the median, p99, p99.9 and maximum to the stats, in microseconds.
+     * @param name Prefix of the metric names.
+     * @param stats The stats to add to.
+     */
+    void addTo(String name, Map<String, Long> stats) {
+        stats.put(name + ".count", count());
+        stats.put(name + ".p50Micros", TimeUnit.NANOSECONDS.toMicros(valueAtPercentile(50)));
+        stats.put(name + ".p99Micros", TimeUnit.NANOSECONDS.toMicros(valueAtPercentile(99)));
+        stats.put(name + ".p999Micros", TimeUnit.NANOSECONDS.toMicros(valueAtPercentile(99.9)));
+        stats.put(name + ".maxMicros", TimeUnit.NANOSECONDS.toMicros(maxNanos()));
+    }
+
+    /**
+     * Values below 64 have a bucket each. Above that, the bucket is given by the position of the highest bit and
+     * the five bits below it.
+     */
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long top = index - (long) shift * SUB_BUCKETS;
+        return (top << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,147 @@
+package Server;
+
+import Operator.LeaderLease;
+import Operator.RegistryOperations;
+
+import java.rmi.RemoteException;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends the heartbeats of a server to the operator and keeps the leader lease it gets back.
+ * The server only acts as the leader while its lease is valid. The lease is counted from when the heartbeat was sent,
+ * so it always runs out here before the operator elects another leader, even if the answer was slow.
+ * It also keeps the highest term the server has seen, which fences off writes from a leader that lost its lease.
+ */
+class LeaseKeeper {
+    private final String nodeId;
+    private final BackendService self;
+    private final Supplier<Instant> latestWrite;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong term = new AtomicLong();
+    private final AtomicLong missedHeartbeats = new AtomicLong();
+    private final AtomicLong staleWritesRejected = new AtomicLong();
+    private volatile RegistryOperations operations;
+    private volatile boolean leader;
+    private volatile long leaseDeadline;
+    private volatile Runnable onRejoin = () -> {};
+
+    /**
+     * @param nodeId The node id of the server.
+     * @param self The server.
+     * @param latestWrite The time stamp of the latest write the server stored, sent with each heartbeat so the
+     *                    operator elects the server that is most up to date.
+     */
+    LeaseKeeper(String nodeId, BackendService self, Supplier<Instant> latestWrite) {
+        this.nodeId = nodeId;
+        this.self = self;
+        this.latestWrite = latestWrite;
+    }
+
+    /**
+     * @param operations The operator to send heartbeats to.
+     */
+    void connect(RegistryOperations operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * Starts sending heartbeats every heartbeat interval. Only called once the server has joined, so a server that
+     * is still catching up is never elected.
+     * @param onRejoin Run on the heartbeat thread when this server has to join again: when it finds out another
+     *                 server was elected in its place, or that the operator unbound it because its heartbeats stopped.
+     */
+    void start(Runnable onRejoin) {
+        this.onRejoin = onRejoin;
+        heartbeats.scheduleWithFixedDelay(this::beat, 0, LeaderLease.HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a heartbeat right away, for example after the operator said this server was elected.
+     */
+    void heartbeatNow() {
+        heartbeats.execute(this::beat);
+    }
+
+    /**
+     * Sends one heartbeat and applies the lease the operator answers with.
+     * @return The lease.
+     * @throws RemoteException if the operator can't be reached.
+     */
+    LeaderLease heartbeat() throws RemoteException {
+        long sent = System.nanoTime();
+        LeaderLease lease = operations.heartbeat(nodeId, self, latestWrite.get());
+        boolean lost;
+        synchronized (this) {
+            term.accumulateAndGet(lease.term(), Math::max);
+            lost = leader && !nodeId.equals(lease.leaderId());
+            leader = nodeId.equals(lease.leaderId());
+            leaseDeadline = sent + TimeUnit.MILLISECONDS.toNanos(lease.remainingMs());
+        }
+        if (lost) {
+            System.out.println("Lost the leader lease, " + lease.leaderName() + " leads term " + lease.term());
+            onRejoin.run();
+        } else if (lease.rejoin()) {
+            System.out.println("The operator unbound this server after missed heartbeats, joining again");
+            onRejoin.run();
+        }
+        return lease;
+    }
+
+    private void beat() {
+        try {
+            heartbeat();
+        } catch (RemoteException | RuntimeException e) {
+            missedHeartbeats.incrementAndGet();
+            System.err.println("Error sending heartbeat " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if this server was elected leader, even if its lease has run out since.
+     */
+    boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * @return true if this server is the leader and its lease is still valid, so it may accept writes.
+     */
+    boolean holdsLease() {
+        return leader && System.nanoTime() - leaseDeadline < 0;
+    }
+
+    long term() {
+        return term.get();
+    }
+
+    /**
+     * Fencing check for writes sent by a leader. A write from an older term than this server has seen comes from a
+     * leader that lost its lease and is rejected.
+     * @param writeTerm The term of the leader that sent the write.
+     * @return true if the write may be stored.
+     */
+    boolean accepts(long writeTerm) {
+        if (term.accumulateAndGet(writeTerm, Math::max) > writeTerm) {
+            staleWritesRejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    long missedHeartbeats() {
+        return missedHeartbeats.get();
+    }
+
+    long staleWritesRejected() {
+        return staleWritesRejected.get();
+    }
+}
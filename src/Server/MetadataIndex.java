@@ -0,0 +1,180 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The metadata of every file stored on a server: version, size, checksum and the replicas that confirmed it.
+ * It is kept in memory and persisted through the write-ahead log, whose snapshot holds one record per file, so
+ * listing files, checking whether a file exists and comparing versions never have to look at the storage directory.
+ */
+class MetadataIndex {
+    private final Map<String, FileMetadata> files = new ConcurrentHashMap<>();
+    private final WriteAheadLog log;
+    private final FileStore store;
+    private final AtomicReference<Instant> latestVersion = new AtomicReference<>();
+
+    MetadataIndex(WriteAheadLog log, FileStore store) {
+        this.log = log;
+        this.store = store;
+    }
+
+    /**
+     * Loads the index from the write-ahead log after a restart. Writes that were logged but not renamed into place
+     * before a crash, or whose commit failed, are committed again. Only the latest write of a file is, so the staged
+     * file of a failed write never replaces a later one. Storage written before there was a log is indexed once by
+     * reading it. Records of names the server reserves for its own state are skipped, they could only have been
+     * logged before such names were refused and committing them again would fail on every start.
+     * @return The number of files in the index.
+     * @throws IOException if the log or the storage can't be read.
+     */
+    int recover() throws IOException {
+        List<WriteAheadLog.Record> records = log.replay();
+        Map<String, WriteAheadLog.Record> latest = new HashMap<>();
+        for (WriteAheadLog.Record record : records) {
+            if (!FileStore.isValidName(record.fileName())) {
+                System.out.println("Skipping the logged write of the reserved name " + record.fileName());
+                continue;
+            }
+            latest.merge(record.fileName(), record, WriteAheadLog::newer);
+        }
+        for (WriteAheadLog.Record record : latest.values()) {
+            if (record.stagedFile() != null) {
+                store.commit(record.fileName(), record.stagedFile());
+            }
+            if (!record.metadata().isDeleted()) {
+                files.put(record.fileName(), record.metadata());
+            }
+        }
+        if (records.isEmpty()) {
+            for (String fileName : store.list()) {
+                try (FileStore.StoredFile file = store.open(fileName)) {
+                    files.put(fileName, FileMetadata.of(file, store.lastModified(fileName)));
+                }
+            }
+        }
+        files.values().forEach(metadata -> advanceLatestVersion(metadata.version()));
+        store.sync();
+        log.start(files);
+        return files.size();
+    }
+
+    FileMetadata get(String fileName) {
+        return fileName == null ? null : files.get(fileName);
+    }
+
+    boolean contains(String fileName) {
+        return get(fileName) != null;
+    }
+
+    /**
+     * @param fileName The file to look up.
+     * @return The version of the file, or null if it isn't stored here.
+     */
+    Instant version(String fileName) {
+        FileMetadata metadata = get(fileName);
+        return metadata == null ? null : metadata.version();
+    }
+
+    List<String> list() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    /**
+     * @return Map of file name to version, for every stored file.
+     */
+    Map<String, Instant> versions() {
+        Map<String, Instant> versions = new HashMap<>();
+        files.forEach((fileName, metadata) -> versions.put(fileName, metadata.version()));
+        return versions;
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    /**
+     * @return The version of the most recent write stored here, or null if nothing was ever written.
+     */
+    Instant latestVersion() {
+        return latestVersion.get();
+    }
+
+    /**
+     * Logs a write, commits its staged file and then updates the index. The index only changes once the new version
+     * is stored, so a failed write is never listed or compared against. A write that was logged but couldn't be
+     * committed is committed again by the recovery after a restart, like one a crash interrupted, so the caller keeps
+     * the staged file if this throws. The caller holds the file's write lock.
+     * @param fileName The file that is written.
+     * @param metadata The metadata of the new version.
+     * @param stagedFile The synced staged file that replaces the stored one, or null if it is already stored.
+     * @throws IOException if the write couldn't be logged or committed.
+     */
+    void put(String fileName, FileMetadata metadata, Path stagedFile) throws IOException {
+        log.append(new WriteAheadLog.Record(fileName, metadata, stagedFile));
+        if (stagedFile != null) {
+            store.commit(fileName, stagedFile);
+        }
+        files.put(fileName, metadata);
+        advanceLatestVersion(metadata.version());
+    }
+
+    /**
+     * Logs a batch of writes with one append, then commits the staged file of each and updates its index entry.
+     * If a commit fails, the files committed before it stay indexed and the rest of the batch isn't, and the caller
+     * keeps the staged files for the recovery. The caller holds the write locks of all the files.
+     * @param writes The writes, with the metadata of each new version and its synced staged file.
+     * @throws IOException if the writes couldn't be logged or a staged file couldn't be committed.
+     */
+    void putAll(List<WriteAheadLog.Record> writes) throws IOException {
+        log.appendAll(writes);
+        for (WriteAheadLog.Record write : writes) {
+            if (write.stagedFile() != null) {
+                store.commit(write.fileName(), write.stagedFile());
+            }
+            files.put(write.fileName(), write.metadata());
+            advanceLatestVersion(write.metadata().version());
+        }
+    }
+
+    /**
+     * Logs that a file was deleted and removes it from the index. The caller holds the file's write lock and deletes
+     * the file from the store once this returns.
+     * @param fileName The file that is deleted.
+     * @param version The version of the file that is deleted.
+     * @throws IOException if the delete couldn't be logged.
+     */
+    void remove(String fileName, Instant version) throws IOException {
+        log.append(new WriteAheadLog.Record(fileName, FileMetadata.deleted(version), null));
+        files.remove(fileName);
+    }
+
+    private void advanceLatestVersion(Instant version) {
+        latestVersion.accumulateAndGet(version, (current, next) -> current == null || next.isAfter(current) ? next : current);
+    }
+
+    /**
+     * Records which replicas confirmed a version of a file. Ignored if the file has been written again since.
+     * @param fileName The file that was replicated.
+     * @param version The version that was replicated.
+     * @param replicas The replicas that confirmed it.
+     */
+    void addReplicas(String fileName, Instant version, Set<String> replicas) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        FileMetadata updated = files.computeIfPresent(fileName,
+                (name, metadata) -> metadata.version().equals(version) ? metadata.withReplicas(replicas) : metadata);
+        if (updated != null && updated.version().equals(version)) {
+            log.appendLater(new WriteAheadLog.Record(fileName, updated, null));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package Server;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters and latency histograms of the process, shared by everything that runs in it.
+ * Request latencies, lock waits, replication and the bytes sent and received are recorded here and reported with the
+ * other stats through getStats of the server or proxy. The same stats are also published over JMX, so a running
+ * process can be watched with jconsole or any other JMX client.
+ */
+public final class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param counter The name of the counter.
+     * @param delta How much to add.
+     */
+    public static void add(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * @param name The name of the histogram.
+     * @return The histogram, created the first time it is asked for.
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Records the time since an operation started.
+     * @param name The name of the histogram.
+     * @param startNanos The System.nanoTime() the operation started at.
+     */
+    public static void recordSince(String name, long startNanos) {
+        histogram(name).recordSince(startNanos);
+    }
+
+    /**
+     * @return Every counter, and the count, percentiles and maximum of every histogram.
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>();
+        counters.forEach((name, counter) -> stats.put(name, counter.sum()));
+        histograms.forEach((name, histogram) -> histogram.addTo(name, stats));
+        return stats;
+    }
+
+    /**
+     * Publishes stats over JMX as DistributedFileSystem:type=(type),name=(name).
+     * A process that can't publish them keeps running, the stats are still available through getStats.
+     * @param type What the process is, for example Server or Proxy.
+     * @param name The name of the process.
+     * @param stats The stats to publish, read every time a JMX client asks for them.
+     */
+    public static void register(String type, String name, Supplier<Map<String, Long>> stats) {
+        try {
+            ObjectName objectName = new ObjectName("DistributedFileSystem:type=" + type + ",name=" + ObjectName.quote(name));
+            StatsMXBean bean = stats::get;
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(bean, StatsMXBean.class, true), objectName);
+        } catch (JMException e) {
+            System.out.println("Could not publish the stats over JMX " + e.getMessage());
+        }
+    }
+
+    /**
+     * The stats of a server or proxy as seen over JMX.
+     */
+    public interface StatsMXBean {
+        Map<String, Long> getStats();
+    }
+}
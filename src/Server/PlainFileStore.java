@@ -0,0 +1,95 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Stores every file as a whole under its own name in the storage directory.
+ * Files are replaced by renaming a temporary file over them, so open files keep the version they opened.
+ */
+class PlainFileStore implements FileStore {
+    private final Path directory;
+
+    PlainFileStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public StoredFile open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(fileName), StandardOpenOption.READ);
+        return new StoredFile() {
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public int read(ByteBuffer target, long position) throws IOException {
+                return channel.read(target, position);
+            }
+
+            @Override
+            public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                return channel.transferTo(position, count, target);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public byte[] readAll(String fileName) throws IOException {
+        return Files.readAllBytes(directory.resolve(fileName));
+    }
+
+    @Override
+    public void commit(String fileName, Path stagedFile) throws IOException {
+        if (Files.notExists(stagedFile)) {
+            return;
+        }
+        Files.move(stagedFile, directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public Instant lastModified(String fileName) throws IOException {
+        return Files.getLastModifiedTime(directory.resolve(fileName)).toInstant();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        FileStore.syncDirectory(directory);
+    }
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        Files.deleteIfExists(directory.resolve(fileName));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        if (Files.notExists(directory)) {
+            return fileNames;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(Files::isRegularFile)
+                    .map(file -> file.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .forEach(fileNames::add);
+        }
+        return fileNames;
+    }
+}
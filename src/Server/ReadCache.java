@@ -0,0 +1,149 @@
+package Server;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory cache of small files, bounded by the total number of bytes it holds.
+ * When the cache is full the least recently used files are evicted first.
+ * Files bigger than a sixteenth of the budget are never cached, so one large file can't flush everything else out.
+ * An entry also keeps the compressed form its file is sent in, which counts against the budget like the file does.
+ */
+public class ReadCache {
+    private final String name;
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param name Name used as the prefix of the cache's metrics.
+     * @param capacityBytes Total number of bytes the cache may hold. 0 disables the cache.
+     */
+    public ReadCache(String name, long capacityBytes) {
+        this.name = name;
+        this.capacityBytes = capacityBytes;
+        this.maxEntryBytes = capacityBytes / 16;
+    }
+
+    /**
+     * Looks up a file and counts the hit or miss.
+     * @param fileName The file to look up.
+     * @return The cached file, or null if it isn't cached.
+     */
+    public synchronized Entry get(String fileName) {
+        Entry entry = entries.get(fileName);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Looks up a file to send it. The first time a cached version is sent its compressed form is made, outside the
+     * lock, and kept with the entry, so sending it again doesn't compress it again.
+     * @param fileName The file to look up.
+     * @return The cached file with its compressed form, or null if it isn't cached.
+     */
+    public Entry getEncoded(String fileName) {
+        Entry entry = get(fileName);
+        if (entry == null || entry.encoded() != null) {
+            return entry;
+        }
+        Entry encoded = new Entry(entry.data(), entry.version(), entry.cachedAtNanos(), Compression.encode(entry.data()));
+        synchronized (this) {
+            // only kept if the file wasn't replaced in the meantime
+            if (entries.get(fileName) == entry) {
+                entries.put(fileName, encoded);
+                sizeBytes += encoded.sizeBytes() - entry.sizeBytes();
+                evict();
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Adds or replaces a file, evicting the least recently used files if the cache goes over its budget.
+     * A file that is too big to cache removes any older copy instead.
+     * @param fileName The file to cache.
+     * @param data The contents of the file.
+     * @param version The version of the file, may be null if it isn't known.
+     */
+    public void put(String fileName, byte[] data, Instant version) {
+        put(fileName, data, version, null);
+    }
+
+    /**
+     * Adds or replaces a file like put(fileName, data, version), together with the compressed form it arrived in.
+     * @param fileName The file to cache.
+     * @param data The contents of the file.
+     * @param version The version of the file, may be null if it isn't known.
+     * @param encoded The compressed form of the data, or null if it isn't known.
+     */
+    public synchronized void put(String fileName, byte[] data, Instant version, Compression.Encoded encoded) {
+        if (data.length > maxEntryBytes) {
+            invalidate(fileName);
+            return;
+        }
+        Entry entry = new Entry(data, version, System.nanoTime(), encoded);
+        Entry previous = entries.put(fileName, entry);
+        sizeBytes += entry.sizeBytes() - (previous == null ? 0 : previous.sizeBytes());
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (sizeBytes > capacityBytes && leastRecentlyUsed.hasNext()) {
+            sizeBytes -= leastRecentlyUsed.next().sizeBytes();
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes a file from the cache.
+     * @param fileName The file to remove.
+     */
+    public synchronized void invalidate(String fileName) {
+        Entry removed = entries.remove(fileName);
+        if (removed != null) {
+            sizeBytes -= removed.sizeBytes();
+        }
+    }
+
+    /**
+     * The cache's counters, for exposing as metrics.
+     * @return Map of metric name to value.
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new TreeMap<>();
+        stats.put(name + ".hits", hits);
+        stats.put(name + ".misses", misses);
+        stats.put(name + ".evictions", evictions);
+        stats.put(name + ".entries", (long) entries.size());
+        stats.put(name + ".bytes", sizeBytes);
+        return stats;
+    }
+
+    /**
+     * A cached file.
+     * @param data The contents of the file. Must not be modified.
+     * @param version The version of the file, may be null if it isn't known.
+     * @param cachedAtNanos The System.nanoTime() the file was put in the cache or last put again.
+     * @param encoded The compressed form the file is sent in, null until it is first sent.
+     */
+    public record Entry(byte[] data, Instant version, long cachedAtNanos, Compression.Encoded encoded) {
+
+        long sizeBytes() {
+            return data.length + (encoded == null ? 0 : encoded.extraBytes());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package Server;
+
+import Operator.MembershipView;
+import Operator.MembershipWatcher;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Cached view of the replica servers, so writes don't have to scan the registry.
+ * The view follows the operator's membership view, which is pushed to it every time a server binds or unbinds.
+ * It is also read right away when a replica fails, and replicas that join tell the leader about themselves directly.
+ * The server's own stub is never part of the view.
+ * The view also keeps the hash ring of the servers, which servers and proxies use to find the leader and the owners
+ * of a file when leadership is split by key. The node ids the ring is built from are asked for outside every lock,
+ * so a server that doesn't answer never holds up the threads that read or apply the view.
+ */
+public class ReplicaMembership {
+    private final MembershipWatcher watcher;
+    private final Remote self;
+    private final String selfId;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "membership-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // node ids never change, so each server is only asked for its id once
+    private final Map<BackendService, String> nodeIds = new ConcurrentHashMap<>();
+    private volatile Map<String, BackendService> replicas;
+    private volatile String incarnation = "";
+    private volatile long epoch = -1;
+    private volatile HashRing ring = new HashRing(Map.of());
+    private volatile Runnable ringListener = () -> {};
+    private volatile Consumer<Collection<BackendService>> replicasListener = replicas -> {};
+
+    /**
+     * @param watcher The operator's membership view.
+     * @param self The object that owns the view. If it is a server it is left out of the replicas and put on the ring itself.
+     * @param selfId The node id of the server that owns the view, or null if it isn't a server.
+     */
+    public ReplicaMembership(MembershipWatcher watcher, Remote self, String selfId) {
+        this.watcher = watcher;
+        Remote stub;
+        try {
+            stub = RemoteObject.toStub(self);
+        } catch (NoSuchObjectException e) {
+            stub = self;
+        }
+        this.self = stub;
+        this.selfId = selfId;
+        watcher.onChange(this::apply);
+    }
+
+    /**
+     * The current replicas by registry name. Only asks the operator if the view has never been loaded.
+     * @return The replicas, not including this server.
+     */
+    Map<String, BackendService> replicas() {
+        Map<String, BackendService> current = replicas;
+        if (current == null) {
+            refresh();
+            current = replicas;
+        }
+        return current;
+    }
+
+    /**
+     * The hash ring of all servers, including this one. Only asks the operator if the view has never been loaded.
+     * @return The ring.
+     */
+    public HashRing ring() {
+        replicas();
+        return ring;
+    }
+
+    /**
+     * @param server A server in the view.
+     * @return The name the server is bound under in the registry, or null if it isn't in the view.
+     */
+    public String registryName(BackendService server) {
+        for (Map.Entry<String, BackendService> replica : replicas().entrySet()) {
+            if (replica.getValue().equals(server)) {
+                return replica.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param listener Run on the thread that applies a new view every time servers join or leave the ring.
+     */
+    void onRingChange(Runnable listener) {
+        this.ringListener = listener;
+    }
+
+    /**
+     * @param listener Run with the replicas, with the lock held, every time the view is replaced or a replica is added.
+     */
+    void onReplicasChange(Consumer<Collection<BackendService>> listener) {
+        this.replicasListener = listener;
+    }
+
+    /**
+     * Adds a replica that just joined, without waiting for the next refresh.
+     * @param name The registry name of the replica.
+     * @param replica The replica.
+     */
+    void add(String name, BackendService replica) {
+        if (self.equals(replica)) {
+            return;
+        }
+        replicas();
+        synchronized (this) {
+            Map<String, BackendService> updated = new HashMap<>(replicas);
+            updated.put(name, replica);
+            replicas = Map.copyOf(updated);
+            replicasListener.accept(replicas.values());
+            updateRing();
+        }
+        resolveNodeIds();
+    }
+
+    /**
+     * Schedules a refresh right away, for example after a replica failed.
+     */
+    public void invalidate() {
+        refresher.execute(this::refresh);
+    }
+
+    long epoch() {
+        return epoch;
+    }
+
+    long refreshes() {
+        return watcher.refreshes();
+    }
+
+    /**
+     * Reads the operator's view right away instead of waiting for it to be pushed. Also called directly when a server
+     * answered that it doesn't lead a file, so the ring is rebuilt before the call is retried.
+     */
+    public void refresh() {
+        apply(watcher.refresh());
+        resolveNodeIds();
+    }
+
+    /**
+     * Replaces the view with the servers of the operator's view. Runs while the operator's view is locked, so it makes
+     * no remote calls: servers whose node id isn't known yet are asked for it on the refresher thread.
+     * @param view The operator's view.
+     */
+    private void apply(MembershipView view) {
+        synchronized (this) {
+            if (replicas != null && !view.replaces(incarnation, epoch)) {
+                return;
+            }
+            Map<String, BackendService> servers = new HashMap<>(view.servers());
+            servers.values().removeIf(self::equals);
+            replicas = Map.copyOf(servers);
+            incarnation = view.incarnation();
+            epoch = view.epoch();
+            nodeIds.keySet().retainAll(replicas.values());
+            replicasListener.accept(replicas.values());
+            updateRing();
+        }
+        if (!nodeIds.keySet().containsAll(replicas.values())) {
+            refresher.execute(this::resolveNodeIds);
+        }
+    }
+
+    /**
+     * Asks the servers whose node id isn't known yet for it, without holding the lock, and then rebuilds the ring.
+     * Servers that don't answer are asked again with the next view.
+     */
+    private void resolveNodeIds() {
+        boolean resolved = false;
+        for (BackendService server : replicas.values()) {
+            if (!nodeIds.containsKey(server)) {
+                try {
+                    nodeIds.put(server, server.getNodeId());
+                    resolved = true;
+                } catch (RemoteException e) {
+                    System.err.println("Error reading the node id of a server " + e.getMessage());
+                }
+            }
+        }
+        if (resolved) {
+            synchronized (this) {
+                updateRing();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the ring from the current replicas whose node id is known, and swaps it in if the servers on it
+     * changed. Called with the lock held.
+     */
+    private void updateRing() {
+        Map<String, BackendService> nodes = new HashMap<>();
+        if (selfId != null) {
+            nodes.put(selfId, (BackendService) self);
+        }
+        for (BackendService server : replicas.values()) {
+            String nodeId = nodeIds.get(server);
+            if (nodeId != null) {
+                nodes.put(nodeId, server);
+            }
+        }
+        if (!nodes.keySet().equals(ring.nodes().keySet())) {
+            ring = new HashRing(nodes);
+            ringListener.run();
+        }
+    }
+}
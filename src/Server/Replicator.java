@@ -0,0 +1,159 @@
+package Server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Sends writes from the leader to all replicas in parallel.
+ * The write is acknowledged once enough replicas have confirmed it for the configured mode. The remaining replicas
+ * keep going in the background. The time each replica took for its last write is kept as its replication lag.
+ * The writes run on the executor of {@link AsyncCalls}, so a write in flight to a slow replica doesn't hold a
+ * platform thread when the JVM has virtual threads.
+ */
+class Replicator {
+    /**
+     * How many replicas have to confirm a write before the leader answers the client.
+     */
+    enum Mode {
+        LEADER,
+        MAJORITY,
+        ALL
+    }
+
+    static final Mode MODE = Mode.valueOf(System.getProperty("dfs.replicationMode", "ALL").toUpperCase());
+    private static final long REPLICATION_TIMEOUT_MS = Long.getLong("dfs.replicationTimeoutMs", 30_000L);
+
+    private final Map<String, ReplicaStats> replicaStats = new ConcurrentHashMap<>();
+    private final Runnable onFailure;
+    private final DownstreamLimits limits;
+
+    /**
+     * @param onFailure Run every time a replica fails a write.
+     * @param limits Limits the writes in flight to each replica.
+     */
+    Replicator(Runnable onFailure, DownstreamLimits limits) {
+        this.onFailure = onFailure;
+        this.limits = limits;
+    }
+
+    /**
+     * Sends a write to every replica at the same time and waits until the mode is satisfied.
+     * @param replicas The replicas to write to, by registry name.
+     * @param write The write to perform on each replica.
+     * @param whenFinished Run once every replica has finished, including the ones that finish after this method returns.
+     *                     Gets the names of the replicas that confirmed the write.
+     * @return true if enough replicas confirmed the write, false if too many failed or the timeout ran out.
+     */
+    boolean replicate(Map<String, BackendService> replicas, ReplicaWrite write, Consumer<Set<String>> whenFinished) {
+        int required = requiredAcks(replicas.size());
+        CompletableFuture<Boolean> quorum = new CompletableFuture<>();
+        if (required == 0) {
+            quorum.complete(true);
+        }
+        if (replicas.isEmpty()) {
+            whenFinished.accept(Set.of());
+            return true;
+        }
+        Set<String> confirmedReplicas = ConcurrentHashMap.newKeySet();
+        AtomicInteger acked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(replicas.size());
+        for (Map.Entry<String, BackendService> replica : replicas.entrySet()) {
+            ReplicaStats stats = replicaStats.computeIfAbsent(replica.getKey(), k -> new ReplicaStats());
+            stats.pending.incrementAndGet();
+            long start = System.nanoTime();
+            AsyncCalls.executor().execute(() -> {
+                boolean confirmed = false;
+                try {
+                    DownstreamLimits.Permit permit = limits.acquire(replica.getValue());
+                    try {
+                        FileData.StatusCodeEnum status = write.send(replica.getValue());
+                        // a replica that already has a later version of the file is up to date
+                        confirmed = status == FileData.StatusCodeEnum.SUCCESS || status == FileData.StatusCodeEnum.OVERWRITTEN;
+                    } finally {
+                        permit.release();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error writing to replica server " + replica.getKey() + " " + e.getMessage());
+                } finally {
+                    stats.pending.decrementAndGet();
+                    if (confirmed) {
+                        confirmedReplicas.add(replica.getKey());
+                        stats.lagMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        Metrics.recordSince("replication.lag", start);
+                        if (acked.incrementAndGet() == required) {
+                            quorum.complete(true);
+                        }
+                    } else {
+                        stats.failures.incrementAndGet();
+                        onFailure.run();
+                        if (failed.incrementAndGet() > replicas.size() - required) {
+                            quorum.complete(false);
+                        }
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        whenFinished.accept(confirmedReplicas);
+                    }
+                }
+            });
+        }
+        long waitStart = System.nanoTime();
+        try {
+            return quorum.get(REPLICATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            Metrics.recordSince("replication.quorumWait", waitStart);
+        }
+    }
+
+    /**
+     * The replication stats of each replica, for exposing as metrics.
+     * @return Map of metric name to value.
+     */
+    Map<String, Long> getStats() {
+        Map<String, Long> stats = new TreeMap<>();
+        replicaStats.forEach((name, replica) -> {
+            stats.put("replication." + name + ".lagMs", replica.lagMillis.get());
+            stats.put("replication." + name + ".pending", (long) replica.pending.get());
+            stats.put("replication." + name + ".failures", replica.failures.get());
+        });
+        return stats;
+    }
+
+    private static int requiredAcks(int replicaCount) {
+        return switch (MODE) {
+            case LEADER -> 0;
+            // the leader counts towards the majority of the cluster
+            case MAJORITY -> (replicaCount + 1) / 2;
+            case ALL -> replicaCount;
+        };
+    }
+
+    /**
+     * A write performed on one replica.
+     */
+    @FunctionalInterface
+    interface ReplicaWrite {
+        FileData.StatusCodeEnum send(BackendService replica) throws IOException;
+    }
+
+    private static final class ReplicaStats {
+        final AtomicLong lagMillis = new AtomicLong();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong failures = new AtomicLong();
+    }
+}
@@ -0,0 +1,44 @@
+package Server;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * Returned when a chunked read or write is opened. The session id has to be passed with every chunk of the transfer.
+ * @param sessionId Id of the session on the server, null if the whole file was returned inline.
+ * @param fileName Name of the file being transferred.
+ * @param fileSize Size of the file in bytes. Only set for reads.
+ * @param chunkSize Largest chunk the server accepts or returns in one call.
+ * @param data Contents of the file when it fits in a single chunk, so small files only need one call.
+ * @param version Version of the file being read, null if the server doesn't know it.
+ * @param status Status code of the operation. Used to return an appropriate error message.
+ * @param dataHost Host of the server's data channel, null if the server has none.
+ * @param dataPort Port of the server's data channel. A read session can be streamed from it instead of chunk by chunk.
+ * @param encoded data in the form it arrived or is cached in, null if it isn't known. It is never sent itself.
+ */
+public record TransferSession(String sessionId, String fileName, long fileSize, int chunkSize, byte[] data, Instant version,
+                              FileData.StatusCodeEnum status, String dataHost, int dataPort,
+                              Compression.Encoded encoded) implements Serializable {
+
+    public TransferSession(String sessionId, String fileName, long fileSize, int chunkSize, byte[] data, Instant version,
+                           FileData.StatusCodeEnum status, String dataHost, int dataPort) {
+        this(sessionId, fileName, fileSize, chunkSize, data, version, status, dataHost, dataPort, null);
+    }
+
+    public TransferSession(String sessionId, String fileName, long fileSize, int chunkSize, byte[] data, Instant version,
+                           FileData.StatusCodeEnum status) {
+        this(sessionId, fileName, fileSize, chunkSize, data, version, status, null, 0);
+    }
+
+    public TransferSession(FileData.StatusCodeEnum status) {
+        this(null, null, 0, 0, null, null, status);
+    }
+
+    /**
+     * Sent in the compact format of WireFormat instead of as a record.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new WireFormat.TransferSessionProxy(this);
+    }
+}
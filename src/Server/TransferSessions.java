@@ -0,0 +1,238 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps track of the chunked read and write sessions opened on a server.
+ * A read session holds the opened file so every chunk comes from the same version of the file.
+ * A write session stages the chunks in a temporary file until the upload is committed.
+ * Sessions that are not used for longer than the session timeout are closed automatically.
+ */
+class TransferSessions {
+    static final int CHUNK_SIZE = Integer.getInteger("dfs.chunkSize", 1024 * 1024);
+    private static final long SESSION_TIMEOUT_MS = Long.getLong("dfs.sessionTimeoutMs", 60_000L);
+
+    private final Map<String, ReadSession> readSessions = new ConcurrentHashMap<>();
+    private final Map<String, WriteSession> writeSessions = new ConcurrentHashMap<>();
+    private final Path uploadDirectory;
+
+    TransferSessions(Path uploadDirectory) {
+        this.uploadDirectory = uploadDirectory;
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::closeIdleSessions, SESSION_TIMEOUT_MS, SESSION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a read session for an already opened file.
+     * @param fileName The file being read.
+     * @param file The opened file. It is closed when the session ends.
+     * @return The id of the new session.
+     */
+    String openRead(String fileName, FileStore.StoredFile file) {
+        String sessionId = UUID.randomUUID().toString();
+        readSessions.put(sessionId, new ReadSession(fileName, file));
+        return sessionId;
+    }
+
+    /**
+     * Creates a temporary file for the upload and registers a write session for it.
+     * @param fileName The file being written.
+     * @param fileSize The size of the file, which the chunks may not go past.
+     * @param timeStamp The UTC time stamp of the write. Used when the session is committed.
+     * @param replica true if the upload is a copy sent by the server that coordinates the file, so it isn't replicated again.
+     * @return The id of the new session.
+     * @throws IOException if the temporary file could not be created.
+     */
+    String openWrite(String fileName, long fileSize, Instant timeStamp, boolean replica) throws IOException {
+        Files.createDirectories(uploadDirectory);
+        Path tempFile = Files.createTempFile(uploadDirectory, "upload", ".part");
+        FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+        String sessionId = UUID.randomUUID().toString();
+        writeSessions.put(sessionId, new WriteSession(fileName, fileSize, timeStamp, tempFile, channel, replica));
+        return sessionId;
+    }
+
+    /**
+     * Stages the data of a single write in the upload directory and syncs it, so it can be logged before it is committed.
+     * @param data The contents of the file.
+     * @return The staged file.
+     * @throws IOException if the file could not be written.
+     */
+    Path stage(byte[] data) throws IOException {
+        return stage(data, "write");
+    }
+
+    /**
+     * Stages data like stage(data) does, under a name starting with the given prefix, which tells the store how to commit it.
+     * @param data The contents of the staged file.
+     * @param prefix The start of the name of the staged file.
+     * @return The staged file.
+     * @throws IOException if the file could not be written.
+     */
+    Path stage(byte[] data, String prefix) throws IOException {
+        Files.createDirectories(uploadDirectory);
+        Path tempFile = Files.createTempFile(uploadDirectory, prefix, ".part");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        return tempFile;
+    }
+
+    /**
+     * Deletes staged files left behind by a crash. Only called at startup, once the write-ahead log has been replayed.
+     * @throws IOException if the upload directory can't be listed.
+     */
+    void discardStagedFiles() throws IOException {
+        if (Files.notExists(uploadDirectory)) {
+            return;
+        }
+        try (Stream<Path> stagedFiles = Files.list(uploadDirectory)) {
+            for (Path stagedFile : (Iterable<Path>) stagedFiles::iterator) {
+                Files.deleteIfExists(stagedFile);
+            }
+        }
+    }
+
+    ReadSession getReadSession(String sessionId) {
+        ReadSession session = sessionId == null ? null : readSessions.get(sessionId);
+        if (session != null) {
+            session.lastUsed = System.currentTimeMillis();
+        }
+        return session;
+    }
+
+    /**
+     * Removes a read session so it can be served in one go. The caller becomes responsible for closing it.
+     * @param sessionId The id of the session.
+     * @return The session, or null if it does not exist or has expired.
+     */
+    ReadSession removeReadSession(String sessionId) {
+        return sessionId == null ? null : readSessions.remove(sessionId);
+    }
+
+    WriteSession getWriteSession(String sessionId) {
+        WriteSession session = sessionId == null ? null : writeSessions.get(sessionId);
+        if (session != null) {
+            session.lastUsed = System.currentTimeMillis();
+        }
+        return session;
+    }
+
+    /**
+     * Removes a write session so it can be committed. The caller becomes responsible for the temporary file.
+     * @param sessionId The id of the session.
+     * @return The session, or null if it does not exist or has expired.
+     */
+    WriteSession removeWriteSession(String sessionId) {
+        return sessionId == null ? null : writeSessions.remove(sessionId);
+    }
+
+    /**
+     * Closes a read or write session. Staged data of an uncommitted write is deleted.
+     * @param sessionId The id of the session.
+     */
+    void close(String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        ReadSession readSession = readSessions.remove(sessionId);
+        if (readSession != null) {
+            readSession.close();
+        }
+        WriteSession writeSession = writeSessions.remove(sessionId);
+        if (writeSession != null) {
+            writeSession.discard();
+        }
+    }
+
+    private void closeIdleSessions() {
+        long cutoff = System.currentTimeMillis() - SESSION_TIMEOUT_MS;
+        readSessions.entrySet().removeIf(entry -> {
+            if (entry.getValue().lastUsed < cutoff) {
+                entry.getValue().close();
+                return true;
+            }
+            return false;
+        });
+        writeSessions.entrySet().removeIf(entry -> {
+            if (entry.getValue().lastUsed < cutoff) {
+                entry.getValue().discard();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    static final class ReadSession {
+        final String fileName;
+        final FileStore.StoredFile file;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        ReadSession(String fileName, FileStore.StoredFile file) {
+            this.fileName = fileName;
+            this.file = file;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Error closing read session for " + fileName + " " + e.getMessage());
+            }
+        }
+    }
+
+    static final class WriteSession {
+        final String fileName;
+        final long fileSize;
+        final Instant timeStamp;
+        final Path tempFile;
+        final FileChannel channel;
+        final boolean replica;
+        volatile long lastUsed = System.currentTimeMillis();
+        // end of the bytes written so far, guarded by the session
+        long written;
+
+        WriteSession(String fileName, long fileSize, Instant timeStamp, Path tempFile, FileChannel channel, boolean replica) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.timeStamp = timeStamp;
+            this.tempFile = tempFile;
+            this.channel = channel;
+            this.replica = replica;
+        }
+
+        void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                System.err.println("Error discarding write session for " + fileName + " " + e.getMessage());
+            }
+        }
+    }
+}
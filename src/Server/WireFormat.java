@@ -0,0 +1,194 @@
+package Server;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.time.Instant;
+
+/**
+ * Compact encoding of the records sent on the data path, FileData and TransferSession.
+ * Records can't customize their own serialization, so each record replaces itself with one of the proxies below
+ * when it is written, and the proxy resolves back to the record when it is read. The proxies write the fields as
+ * primitives behind a byte of flags for the fields that are set: the status as its ordinal and the version as its
+ * seconds and nanos, instead of the class descriptors and field names of the records, of Instant and of the enum.
+ * The file contents are compressed as Compression decides, its codec is kept in two bits of the flags, and written as
+ * a plain byte array, which the stream copies as is.
+ */
+final class WireFormat {
+    private static final int HAS_NAME = 1;
+    private static final int HAS_DATA = 1 << 1;
+    private static final int HAS_VERSION = 1 << 2;
+    private static final int HAS_SESSION = 1 << 3;
+    private static final int HAS_DATA_HOST = 1 << 4;
+    private static final int CODEC_SHIFT = 5;
+    private static final int CODEC_MASK = 3;
+
+    private WireFormat() {
+    }
+
+    private static int flags(String name, byte[] data, Instant version) {
+        return (name != null ? HAS_NAME : 0) | (data != null ? HAS_DATA : 0) | (version != null ? HAS_VERSION : 0);
+    }
+
+    private static void writeStatus(ObjectOutput out, FileData.StatusCodeEnum status) throws IOException {
+        out.writeByte(status == null ? -1 : status.ordinal());
+    }
+
+    private static FileData.StatusCodeEnum readStatus(ObjectInput in) throws IOException {
+        int ordinal = in.readByte();
+        FileData.StatusCodeEnum[] statuses = FileData.StatusCodeEnum.values();
+        if (ordinal >= statuses.length) {
+            throw new IOException("Unknown status " + ordinal);
+        }
+        return ordinal < 0 ? null : statuses[ordinal];
+    }
+
+    private static void writeVersion(ObjectOutput out, Instant version) throws IOException {
+        out.writeLong(version.getEpochSecond());
+        out.writeInt(version.getNano());
+    }
+
+    private static Instant readVersion(ObjectInput in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+
+    private static int codecFlags(Compression.Encoded data) {
+        return data == null ? 0 : data.codec().ordinal() << CODEC_SHIFT;
+    }
+
+    private static void writeData(ObjectOutput out, Compression.Encoded data) throws IOException {
+        Metrics.add("wire.bytesOut", data.data().length);
+        if (data.codec() != Compression.Codec.NONE) {
+            out.writeInt(data.rawLength());
+        }
+        out.writeObject(data.data());
+    }
+
+    private static Compression.Encoded readData(ObjectInput in, int flags) throws IOException {
+        Compression.Codec codec = Compression.codec((flags >> CODEC_SHIFT) & CODEC_MASK);
+        int rawLength = codec == Compression.Codec.NONE ? 0 : in.readInt();
+        try {
+            byte[] data = (byte[]) in.readObject();
+            Metrics.add("wire.bytesIn", data.length);
+            return new Compression.Encoded(codec, codec == Compression.Codec.NONE ? data.length : rawLength, data);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Serialized form of FileData.
+     */
+    static final class FileDataProxy implements Externalizable {
+        private static final long serialVersionUID = 1L;
+        private FileData file;
+
+        public FileDataProxy() {
+        }
+
+        FileDataProxy(FileData file) {
+            this.file = file;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            Compression.Encoded data = file.fileData() == null ? null : Compression.encode(file.fileData(), file.encoded());
+            out.writeByte(flags(file.fileName(), file.fileData(), file.version()) | codecFlags(data));
+            writeStatus(out, file.status());
+            if (file.fileName() != null) {
+                out.writeUTF(file.fileName());
+            }
+            if (file.version() != null) {
+                writeVersion(out, file.version());
+            }
+            if (data != null) {
+                writeData(out, data);
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            int flags = in.readUnsignedByte();
+            FileData.StatusCodeEnum status = readStatus(in);
+            String fileName = (flags & HAS_NAME) != 0 ? in.readUTF() : null;
+            Instant version = (flags & HAS_VERSION) != 0 ? readVersion(in) : null;
+            Compression.Encoded encoded = (flags & HAS_DATA) != 0 ? readData(in, flags) : null;
+            byte[] data = encoded == null ? null : Compression.decode(encoded);
+            // the encoded form is kept with the file, so a proxy or leader passing it on doesn't compress it again
+            file = new FileData(fileName, data, status, version, encoded == null ? null : encoded.boundTo(data));
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return file;
+        }
+    }
+
+    /**
+     * Serialized form of TransferSession.
+     */
+    static final class TransferSessionProxy implements Externalizable {
+        private static final long serialVersionUID = 1L;
+        private TransferSession session;
+
+        public TransferSessionProxy() {
+        }
+
+        TransferSessionProxy(TransferSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            Compression.Encoded data = session.data() == null ? null : Compression.encode(session.data(), session.encoded());
+            int flags = flags(session.fileName(), session.data(), session.version()) | codecFlags(data)
+                    | (session.sessionId() != null ? HAS_SESSION : 0) | (session.dataHost() != null ? HAS_DATA_HOST : 0);
+            out.writeByte(flags);
+            writeStatus(out, session.status());
+            out.writeLong(session.fileSize());
+            out.writeInt(session.chunkSize());
+            if (session.sessionId() != null) {
+                out.writeUTF(session.sessionId());
+            }
+            if (session.fileName() != null) {
+                out.writeUTF(session.fileName());
+            }
+            if (session.version() != null) {
+                writeVersion(out, session.version());
+            }
+            if (session.dataHost() != null) {
+                out.writeUTF(session.dataHost());
+                out.writeInt(session.dataPort());
+            }
+            if (data != null) {
+                writeData(out, data);
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            int flags = in.readUnsignedByte();
+            FileData.StatusCodeEnum status = readStatus(in);
+            long fileSize = in.readLong();
+            int chunkSize = in.readInt();
+            String sessionId = (flags & HAS_SESSION) != 0 ? in.readUTF() : null;
+            String fileName = (flags & HAS_NAME) != 0 ? in.readUTF() : null;
+            Instant version = (flags & HAS_VERSION) != 0 ? readVersion(in) : null;
+            String dataHost = null;
+            int dataPort = 0;
+            if ((flags & HAS_DATA_HOST) != 0) {
+                dataHost = in.readUTF();
+                dataPort = in.readInt();
+            }
+            Compression.Encoded encoded = (flags & HAS_DATA) != 0 ? readData(in, flags) : null;
+            byte[] data = encoded == null ? null : Compression.decode(encoded);
+            session = new TransferSession(sessionId, fileName, fileSize, chunkSize, data, version, status, dataHost, dataPort,
+                    encoded == null ? null : encoded.boundTo(data));
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return session;
+        }
+    }
+}
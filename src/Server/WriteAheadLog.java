@@ -0,0 +1,365 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the writes a server accepted. A write is logged after its data is staged and synced, and before
+ * the staged file is renamed over the stored one, so after a crash the rename can be redone and the metadata of
+ * every file is known again.
+ * Appends are synced by a single writer thread. Writers that arrive while a sync is running are written and synced
+ * together in the next batch, so concurrent writes share one fsync.
+ * A batch that can't be written is cut off the end of the log again, so the log never holds a torn record that would
+ * stop the replay before the appends that follow it. If the log can't be cut back, or the writer thread dies, the log
+ * is failed and every later append is rejected.
+ * Once the log holds more records than there are files, the writer replaces it with a snapshot of one record per
+ * file, so replaying it on startup stays proportional to the number of files.
+ */
+class WriteAheadLog {
+    private static final int MAX_BATCH = 256;
+    private static final long COMPACT_MIN_RECORDS = Long.getLong("dfs.walCompactRecords", 100_000L);
+    private static final long APPEND_TIMEOUT_MS = Long.getLong("dfs.walAppendTimeoutMs", 30_000L);
+
+    private final Path logFile;
+    private final BlockingQueue<PendingAppend> pending = new LinkedBlockingQueue<>();
+    // the latest record of every file, written by the writer thread only, to build the snapshot from
+    private final Map<String, Record> latest = new HashMap<>();
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private long recordsSinceSnapshot;
+    private FileChannel channel;
+    private volatile IOException failure;
+
+    WriteAheadLog(Path directory) {
+        this.logFile = directory.resolve("wal.log");
+    }
+
+    /**
+     * Reads the records of the existing log. Reading stops at the first record that is incomplete or corrupt,
+     * which is where a crash interrupted the last append. The log is streamed, so only one record is held in memory
+     * besides the records read so far.
+     * @return The records in the order they were appended.
+     * @throws IOException if the log can't be read.
+     */
+    List<Record> replay() throws IOException {
+        List<Record> records = new ArrayList<>();
+        if (Files.notExists(logFile)) {
+            return records;
+        }
+        long remaining = Files.size(logFile);
+        try (DataInputStream log = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (remaining >= 2 * Integer.BYTES) {
+                int length = log.readInt();
+                int checksum = log.readInt();
+                remaining -= 2 * Integer.BYTES;
+                if (length < 0 || length > remaining) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                log.readFully(payload);
+                remaining -= length;
+                if (checksum != checksum(payload)) {
+                    break;
+                }
+                try {
+                    records.add(decode(payload));
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // the log was cut short while it was read, the records before the cut are complete
+        }
+        return records;
+    }
+
+    /**
+     * Replaces the log with one record per file and starts accepting appends. Called once recovery is done,
+     * so the log only grows with the writes made since the server started.
+     * @param files The current metadata of every file.
+     * @throws IOException if the log can't be written.
+     */
+    void start(Map<String, FileMetadata> files) throws IOException {
+        files.forEach((fileName, metadata) -> latest.put(fileName, new Record(fileName, metadata, null)));
+        writeSnapshot();
+        Thread writer = new Thread(this::writeBatches, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record and waits until it is synced to disk.
+     * @param record The record to append.
+     * @throws IOException if the record couldn't be synced.
+     */
+    void append(Record record) throws IOException {
+        appendAll(List.of(record));
+    }
+
+    /**
+     * Appends the records of a batch of writes as one append and waits until it is synced to disk. The records are
+     * written together, so the whole batch costs one append and at most one fsync.
+     * @param records The records to append.
+     * @throws IOException if the records couldn't be synced.
+     */
+    void appendAll(List<Record> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        if (failure != null) {
+            throw new IOException("The write-ahead log failed", failure);
+        }
+        PendingAppend append = new PendingAppend(records, encodeAll(records), new CompletableFuture<>());
+        pending.add(append);
+        if (failure != null) {
+            // the writer may have failed before it saw this append
+            append.synced.completeExceptionally(failure);
+        }
+        try {
+            append.synced.get(APPEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("The write-ahead log didn't sync within " + APPEND_TIMEOUT_MS + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Appends a record without waiting for it to be synced. It is synced with the next batch of appends.
+     * Used for changes that can be lost in a crash, like which replicas confirmed a version.
+     * @param record The record to append.
+     */
+    void appendLater(Record record) {
+        try {
+            pending.add(new PendingAppend(List.of(record), encode(record), new CompletableFuture<>()));
+        } catch (IOException e) {
+            System.err.println("Error encoding write-ahead log record for " + record.fileName() + " " + e.getMessage());
+        }
+    }
+
+    long appends() {
+        return appends.get();
+    }
+
+    long syncs() {
+        return syncs.get();
+    }
+
+    long compactions() {
+        return compactions.get();
+    }
+
+    private void writeBatches() {
+        List<PendingAppend> batch = new ArrayList<>();
+        try {
+            while (failure == null) {
+                try {
+                    batch.add(pending.take());
+                } catch (InterruptedException e) {
+                    fail(new IOException("The write-ahead log writer was interrupted", e), batch);
+                    return;
+                }
+                pending.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+                batch.clear();
+                compactIfNeeded();
+            }
+        } catch (Throwable e) {
+            System.err.println("The write-ahead log writer stopped " + e);
+            fail(new IOException("The write-ahead log writer stopped", e), batch);
+        }
+    }
+
+    /**
+     * Writes and syncs a batch. The latest records only change once the batch is synced, so a snapshot never holds a
+     * write that wasn't acknowledged.
+     */
+    private void writeBatch(List<PendingAppend> batch) throws IOException {
+        long start = channel.size();
+        try {
+            int records = 0;
+            for (PendingAppend append : batch) {
+                writeFully(channel, append.encoded);
+                records += append.records.size();
+            }
+            channel.force(false);
+            for (PendingAppend append : batch) {
+                for (Record record : append.records) {
+                    Record merged = latest.merge(record.fileName(), record, WriteAheadLog::newer);
+                    if (merged.metadata().isDeleted()) {
+                        // the snapshot replaces every earlier record, so a deleted file can simply be left out
+                        latest.remove(record.fileName());
+                    }
+                }
+            }
+            syncs.incrementAndGet();
+            appends.addAndGet(batch.size());
+            recordsSinceSnapshot += records;
+            batch.forEach(append -> append.synced.complete(null));
+        } catch (IOException e) {
+            System.err.println("Error writing the write-ahead log " + e.getMessage());
+            batch.forEach(append -> append.synced.completeExceptionally(e));
+            // cut off what was written of the batch, or the replay would stop at it and lose every later append
+            channel.truncate(start);
+            channel.force(false);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (recordsSinceSnapshot > COMPACT_MIN_RECORDS && recordsSinceSnapshot > latest.size()) {
+            try {
+                writeSnapshot();
+                compactions.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("Error compacting the write-ahead log " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rejects every later append, and fails the appends that are waiting.
+     */
+    private void fail(IOException cause, List<PendingAppend> batch) {
+        failure = cause;
+        List<PendingAppend> waiting = new ArrayList<>(batch);
+        pending.drainTo(waiting);
+        waiting.forEach(append -> append.synced.completeExceptionally(cause));
+    }
+
+    /**
+     * Writes the latest record of every file to a new log and switches appends over to it.
+     * Staged files are kept in the records, their renames may not have happened yet.
+     */
+    private void writeSnapshot() throws IOException {
+        Files.createDirectories(logFile.getParent());
+        Path tempFile = logFile.resolveSibling("wal.log.tmp");
+        try (FileChannel snapshot = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Record record : latest.values()) {
+                writeFully(snapshot, encode(record));
+            }
+            snapshot.force(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileStore.syncDirectory(logFile.getParent());
+        channel = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recordsSinceSnapshot = latest.size();
+    }
+
+    /**
+     * Picks the record that describes the file, a record for an older version never replaces a newer one.
+     */
+    static Record newer(Record current, Record record) {
+        return record.metadata().version().isBefore(current.metadata().version()) ? current : record;
+    }
+
+    private static ByteBuffer encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            FileMetadata metadata = record.metadata();
+            out.writeUTF(record.fileName());
+            out.writeLong(metadata.version().getEpochSecond());
+            out.writeInt(metadata.version().getNano());
+            out.writeLong(metadata.size());
+            out.writeLong(metadata.checksum());
+            out.writeInt(metadata.replicas().size());
+            for (String replica : metadata.replicas()) {
+                out.writeUTF(replica);
+            }
+            out.writeUTF(record.stagedFile() == null ? "" : record.stagedFile().toString());
+        }
+        byte[] payload = bytes.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + payload.length);
+        buffer.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+        return buffer;
+    }
+
+    private static ByteBuffer encodeAll(List<Record> records) throws IOException {
+        if (records.size() == 1) {
+            return encode(records.get(0));
+        }
+        List<ByteBuffer> encoded = new ArrayList<>(records.size());
+        int size = 0;
+        for (Record record : records) {
+            ByteBuffer buffer = encode(record);
+            encoded.add(buffer);
+            size += buffer.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(size);
+        encoded.forEach(all::put);
+        return all.flip();
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String fileName = in.readUTF();
+            Instant version = Instant.ofEpochSecond(in.readLong(), in.readInt());
+            long size = in.readLong();
+            long checksum = in.readLong();
+            String[] replicas = new String[in.readInt()];
+            for (int i = 0; i < replicas.length; i++) {
+                replicas[i] = in.readUTF();
+            }
+            String stagedFile = in.readUTF();
+            return new Record(fileName, new FileMetadata(version, size, checksum, Set.of(replicas)),
+                    stagedFile.isEmpty() ? null : Paths.get(stagedFile));
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * One logged change.
+     * @param fileName The file that changed.
+     * @param metadata The metadata of the file after the change.
+     * @param stagedFile The staged file that replaces the stored one, or null if there was nothing to rename.
+     */
+    record Record(String fileName, FileMetadata metadata, Path stagedFile) {
+    }
+
+    private record PendingAppend(List<Record> records, ByteBuffer encoded, CompletableFuture<Void> synced) {
+    }
+}